@@ -0,0 +1,12 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+public class AABB {
+
+    // Minimum and maximum corners of the box
+    public final Vector3 min, max;
+
+    public AABB(Vector3 min, Vector3 max) {
+        this.min = min;
+        this.max = max;
+    }
+}
@@ -0,0 +1,528 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+public class BVH {
+
+    // How objects are split between the two children of a node
+    public enum Strategy {
+        MEDIAN, // median centroid along the widest axis
+        SAH     // binned surface area heuristic
+    }
+
+    // Ranges with at most this many objects always become leaves
+    private static final int MAX_LEAF_SIZE = 4;
+
+    // Surface area heuristic constants
+    private static final int SAH_BINS = 16;
+    // Spheres tested per instruction by the SphereSet kernel, leaves are sized in multiples of it
+    private static final int LANES = SphereSet.getVectorLanes();
+    private static final int SAH_MAX_LEAF_SIZE = Math.max(8, 2 * LANES);
+    private static final double TRAVERSAL_COST = 1; // cost of visiting a node relative to...
+    private static final double INTERSECTION_COST = 2; // ...the cost of an object intersection test
+
+    // Ranges with fewer objects than this are built on the current thread instead of being forked
+    private static final int PARALLEL_THRESHOLD = 4096;
+
+    // Objects reordered so that every leaf references a contiguous range
+    private SceneObject[] objects;
+
+    // The same objects packed for batched intersection, or null if some of them are not plain spheres
+    private SphereSet spheres;
+
+    // Flattened nodes in depth-first order, the left child of an interior node i is always i + 1
+    private double[] bounds; // minX, minY, minZ, maxX, maxY, maxZ for every node
+    private int[] offsets;   // leaf: index of first object, interior: index of right child
+    private int[] counts;    // leaf: number of objects, interior: 0
+    private int[] axes;      // interior: axis the node was split along
+
+    // Build statistics
+    private int nodeCount;
+    private int leafCount;
+    private int depth;
+    private long buildTimeNanos;
+    private double traversalCost;
+
+    // Inputs of the build: object bounds and centroids packed as xyz triples, and the object order being sorted
+    private final Strategy strategy;
+    private double[] objectBounds;
+    private double[] centroids;
+    private int[] indices;
+
+    // Node of the tree while it is being built, flattened once construction is finished
+    static class Node {
+        final double[] bounds = new double[6];
+        Node left, right;
+        int first, count, axis;
+    }
+
+    /*
+     * Nodes still to visit during a traversal. Queries allocate a fresh one unless the caller passes its own,
+     * which it can reuse for every ray it traces on one thread, whichever hierarchy they are cast into.
+     */
+    public static class TraversalStack {
+        private int[] nodes = new int[0];
+
+        int[] reserve(int size) {
+            if (nodes.length < size) nodes = new int[size];
+            return nodes;
+        }
+    }
+
+    public BVH(List<SceneObject> sceneObjects) {
+        this(sceneObjects, Strategy.SAH, ForkJoinPool.commonPool());
+    }
+
+    public BVH(List<SceneObject> sceneObjects, Strategy strategy, ForkJoinPool pool) {
+        long startTime = System.nanoTime();
+        this.strategy = strategy;
+
+        int n = sceneObjects.size();
+        objects = sceneObjects.toArray(new SceneObject[0]);
+        objectBounds = new double[6 * n];
+        centroids = new double[3 * n];
+        indices = new int[n];
+        for (int i = 0; i < n; i++) {
+            AABB box = objects[i].getBounds();
+            objectBounds[6 * i] = box.min.x;
+            objectBounds[6 * i + 1] = box.min.y;
+            objectBounds[6 * i + 2] = box.min.z;
+            objectBounds[6 * i + 3] = box.max.x;
+            objectBounds[6 * i + 4] = box.max.y;
+            objectBounds[6 * i + 5] = box.max.z;
+            for (int a = 0; a < 3; a++) {
+                centroids[3 * i + a] = 0.5 * (objectBounds[6 * i + a] + objectBounds[6 * i + 3 + a]);
+            }
+            indices[i] = i;
+        }
+
+        Node root = null;
+        if (n > 0) {
+            root = n < PARALLEL_THRESHOLD ? build(0, n) : pool.invoke(new BuildTask(0, n));
+        }
+
+        SceneObject[] ordered = new SceneObject[n];
+        for (int i = 0; i < n; i++) {
+            ordered[i] = objects[indices[i]];
+        }
+        objects = ordered;
+        flatten(root);
+
+        boolean packable = true;
+        for (SceneObject object : objects) {
+            packable &= SphereSet.canPack(object);
+        }
+        spheres = packable ? new SphereSet(Arrays.asList(objects)) : null;
+
+        // Only needed during construction
+        objectBounds = centroids = null;
+        indices = null;
+        buildTimeNanos = System.nanoTime() - startTime;
+    }
+
+    // Builds large subtrees in parallel, both children are independent as they own disjoint index ranges
+    private class BuildTask extends RecursiveTask<Node> {
+        private static final long serialVersionUID = 1L;
+
+        private final int start, end;
+
+        BuildTask(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected Node compute() {
+            return build(start, end);
+        }
+    }
+
+    // Recursively split objects [start, end) into a subtree
+    private Node build(int start, int end) {
+        Node node = new Node();
+        double[] cBounds = new double[6];
+        computeBounds(start, end, node.bounds, cBounds);
+
+        int axis = 0;
+        for (int a = 1; a < 3; a++) {
+            if (cBounds[3 + a] - cBounds[a] > cBounds[3 + axis] - cBounds[axis]) axis = a;
+        }
+
+        int count = end - start;
+        if (count <= MAX_LEAF_SIZE || cBounds[3 + axis] <= cBounds[axis]) {
+            return makeLeaf(node, start, end);
+        }
+
+        int mid = -1;
+        if (strategy == Strategy.SAH) {
+            mid = partitionSAH(node, start, end, cBounds);
+            if (mid == end) {
+                // Splitting is estimated to be more expensive than testing every object
+                return makeLeaf(node, start, end);
+            }
+        }
+        if (mid < 0) {
+            node.axis = axis;
+            mid = (start + end) / 2;
+            select(axis, start, end - 1, mid);
+        }
+
+        if (count >= PARALLEL_THRESHOLD) {
+            BuildTask left = new BuildTask(start, mid);
+            left.fork();
+            node.right = build(mid, end);
+            node.left = left.join();
+        } else {
+            node.left = build(start, mid);
+            node.right = build(mid, end);
+        }
+        return node;
+    }
+
+    private static Node makeLeaf(Node node, int start, int end) {
+        node.first = start;
+        node.count = end - start;
+        return node;
+    }
+
+    // Bounds of the objects [start, end) and of their centroids
+    private void computeBounds(int start, int end, double[] box, double[] cBox) {
+        for (int a = 0; a < 3; a++) {
+            box[a] = cBox[a] = Double.POSITIVE_INFINITY;
+            box[3 + a] = cBox[3 + a] = Double.NEGATIVE_INFINITY;
+        }
+        for (int i = start; i < end; i++) {
+            int o = indices[i];
+            for (int a = 0; a < 3; a++) {
+                box[a] = Math.min(box[a], objectBounds[6 * o + a]);
+                box[3 + a] = Math.max(box[3 + a], objectBounds[6 * o + 3 + a]);
+                cBox[a] = Math.min(cBox[a], centroids[3 * o + a]);
+                cBox[3 + a] = Math.max(cBox[3 + a], centroids[3 * o + a]);
+            }
+        }
+    }
+
+    /*
+     * Bin the centroids of [start, end) along every axis and partition at the bin boundary with the lowest
+     * surface area heuristic cost. Returns the index of the first object of the right child and sets the
+     * node's split axis, or returns end if a leaf is cheaper and -1 if no split separates the centroids.
+     */
+    private int partitionSAH(Node node, int start, int end, double[] cBox) {
+        int count = end - start;
+        double parentArea = surfaceArea(node.bounds, 0);
+
+        int[] binCounts = new int[SAH_BINS];
+        double[] binBounds = new double[6 * SAH_BINS];
+        double[] rightAreas = new double[SAH_BINS];
+        double[] sweep = new double[6];
+
+        double bestCost = Double.POSITIVE_INFINITY;
+        int bestAxis = -1, bestSplit = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            double cMin = cBox[axis], extent = cBox[3 + axis] - cMin;
+            if (extent <= 0) continue;
+            double binScale = SAH_BINS / extent;
+
+            Arrays.fill(binCounts, 0);
+            for (int b = 0; b < SAH_BINS; b++) {
+                for (int a = 0; a < 3; a++) {
+                    binBounds[6 * b + a] = Double.POSITIVE_INFINITY;
+                    binBounds[6 * b + 3 + a] = Double.NEGATIVE_INFINITY;
+                }
+            }
+            for (int i = start; i < end; i++) {
+                int o = indices[i];
+                int b = Math.min(SAH_BINS - 1, (int) ((centroids[3 * o + axis] - cMin) * binScale));
+                binCounts[b]++;
+                for (int a = 0; a < 3; a++) {
+                    binBounds[6 * b + a] = Math.min(binBounds[6 * b + a], objectBounds[6 * o + a]);
+                    binBounds[6 * b + 3 + a] = Math.max(binBounds[6 * b + 3 + a], objectBounds[6 * o + 3 + a]);
+                }
+            }
+
+            // Sweep from the right to get the area of every right-hand side, then from the left to evaluate splits
+            resetBox(sweep);
+            for (int b = SAH_BINS - 1; b > 0; b--) {
+                growBox(sweep, binBounds, b);
+                rightAreas[b] = surfaceArea(sweep, 0);
+            }
+            resetBox(sweep);
+            int leftCount = 0;
+            for (int b = 0; b < SAH_BINS - 1; b++) {
+                growBox(sweep, binBounds, b);
+                leftCount += binCounts[b];
+                int rightCount = count - leftCount;
+                if (leftCount == 0 || rightCount == 0) continue;
+                double cost = TRAVERSAL_COST + (surfaceArea(sweep, 0) * leafCost(leftCount)
+                        + rightAreas[b + 1] * leafCost(rightCount)) / parentArea;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestSplit = b;
+                }
+            }
+        }
+
+        if (bestAxis < 0) return -1;
+        if (count <= SAH_MAX_LEAF_SIZE && bestCost >= leafCost(count)) return end;
+
+        // Partition the index range in place so that objects in bins <= bestSplit come first
+        double cMin = cBox[bestAxis], binScale = SAH_BINS / (cBox[3 + bestAxis] - cMin);
+        int i = start, j = end - 1;
+        while (i <= j) {
+            int b = Math.min(SAH_BINS - 1, (int) ((centroids[3 * indices[i] + bestAxis] - cMin) * binScale));
+            if (b <= bestSplit) {
+                i++;
+            } else {
+                int tmp = indices[i];
+                indices[i] = indices[j];
+                indices[j] = tmp;
+                j--;
+            }
+        }
+        node.axis = bestAxis;
+        return i;
+    }
+
+    // Cost of testing a leaf of count objects, which the vector kernel handles LANES at a time
+    private static double leafCost(int count) {
+        return (count + LANES - 1) / LANES * INTERSECTION_COST;
+    }
+
+    private static void resetBox(double[] box) {
+        for (int a = 0; a < 3; a++) {
+            box[a] = Double.POSITIVE_INFINITY;
+            box[3 + a] = Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    private static void growBox(double[] box, double[] other, int index) {
+        for (int a = 0; a < 3; a++) {
+            box[a] = Math.min(box[a], other[6 * index + a]);
+            box[3 + a] = Math.max(box[3 + a], other[6 * index + 3 + a]);
+        }
+    }
+
+    private static double surfaceArea(double[] box, int index) {
+        double dx = box[6 * index + 3] - box[6 * index];
+        double dy = box[6 * index + 4] - box[6 * index + 1];
+        double dz = box[6 * index + 5] - box[6 * index + 2];
+        if (dx < 0 || dy < 0 || dz < 0) return 0;
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
+    // Reorder indices so that the k-th smallest centroid along axis ends up at position k (quickselect)
+    private void select(int axis, int lo, int hi, int k) {
+        while (lo < hi) {
+            double pivot = centroids[3 * indices[(lo + hi) >>> 1] + axis];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (centroids[3 * indices[i] + axis] < pivot) i++;
+                while (centroids[3 * indices[j] + axis] > pivot) j--;
+                if (i <= j) {
+                    int tmp = indices[i];
+                    indices[i] = indices[j];
+                    indices[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) hi = j;
+            else if (k >= i) lo = i;
+            else return;
+        }
+    }
+
+    private void flatten(Node root) {
+        int total = countNodes(root);
+        bounds = new double[6 * total];
+        offsets = new int[total];
+        counts = new int[total];
+        axes = new int[total];
+        nodeCount = leafCount = depth = 0;
+        traversalCost = 0;
+        if (root != null) flatten(root, 1, 1 / surfaceArea(root.bounds, 0));
+    }
+
+    private int flatten(Node node, int level, double invRootArea) {
+        int index = nodeCount++;
+        depth = Math.max(depth, level);
+        System.arraycopy(node.bounds, 0, bounds, 6 * index, 6);
+
+        // Expected cost of a ray that hits the root box, weighting every node by the probability of reaching it
+        double probability = Double.isInfinite(invRootArea) ? 1 : surfaceArea(node.bounds, 0) * invRootArea;
+        if (node.left == null) {
+            offsets[index] = node.first;
+            counts[index] = node.count;
+            leafCount++;
+            traversalCost += probability * leafCost(node.count);
+        } else {
+            axes[index] = node.axis;
+            traversalCost += probability * TRAVERSAL_COST;
+            flatten(node.left, level + 1, invRootArea);
+            offsets[index] = flatten(node.right, level + 1, invRootArea);
+        }
+        return index;
+    }
+
+    private static int countNodes(Node node) {
+        if (node == null) return 0;
+        return 1 + countNodes(node.left) + countNodes(node.right);
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public double getBuildTimeMillis() {
+        return buildTimeNanos / 1e6;
+    }
+
+    // Estimated cost of tracing a ray through the hierarchy, in the same units as getLinearScanCost
+    public double getTraversalCost() {
+        return traversalCost;
+    }
+
+    // Estimated cost of testing the ray against every object in turn
+    public double getLinearScanCost() {
+        return leafCost(objects.length);
+    }
+
+    public String getStatistics() {
+        return String.format("BVH (%s): %d objects, %d nodes, %d leaves, depth %d, built in %.1f ms, "
+                        + "estimated cost %.1f vs %.1f for a linear scan",
+                strategy, objects.length, nodeCount, leafCount, depth, getBuildTimeMillis(),
+                traversalCost, getLinearScanCost());
+    }
+
+    /*
+     * Find the object in the hierarchy whose intersection with the ray is closest and nearer than nearest[0],
+     * updating nearest[0] to its distance. Returns null if there is no such object.
+     */
+    public SceneObject findClosestObject(Ray ray, double[] nearest) {
+        Vector3 O = ray.getOrigin(), D = ray.getDirection();
+        return findClosestObject(O.x, O.y, O.z, D.x, D.y, D.z, nearest, new TraversalStack());
+    }
+
+    // As above for the ray from (ox, oy, oz) along (dx, dy, dz), keeping the nodes still to visit in stack
+    public SceneObject findClosestObject(double ox, double oy, double oz, double dx, double dy, double dz,
+                                         double[] nearest, TraversalStack stack) {
+        if (nodeCount == 0) return null;
+
+        double magnitude = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        double invLength = 1 / magnitude;
+        double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+        int closest = -1;
+
+        int[] nodes = stack.reserve(depth + 1);
+        int top = 0;
+        nodes[top++] = 0;
+        while (top > 0) {
+            int node = nodes[--top];
+            // Hit distances are measured along D, while the slab test works with the ray parameter
+            if (!intersectsBox(node, ox, oy, oz, ix, iy, iz, nearest[0] * invLength))
+                continue;
+
+            if (counts[node] > 0) {
+                if (spheres != null) {
+                    int index = spheres.intersect(ox, oy, oz, dx, dy, dz, magnitude,
+                            offsets[node], offsets[node] + counts[node], nearest);
+                    if (index >= 0) closest = index;
+                } else {
+                    for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+                        double distance = objects[i].intersect(ox, oy, oz, dx, dy, dz) * magnitude;
+                        if (distance < nearest[0]) {
+                            nearest[0] = distance;
+                            closest = i;
+                        }
+                    }
+                }
+            } else if ((axes[node] == 0 ? ix : axes[node] == 1 ? iy : iz) < 0) {
+                // Visit the child nearer to the ray origin first, so that the far one is more likely to be culled
+                nodes[top++] = node + 1;
+                nodes[top++] = offsets[node];
+            } else {
+                nodes[top++] = offsets[node];
+                nodes[top++] = node + 1;
+            }
+        }
+        return closest < 0 ? null : objects[closest];
+    }
+
+    // Whether any object in the hierarchy is hit closer than maxDistance, returning as soon as one is found
+    public boolean isOccluded(Ray ray, double maxDistance) {
+        Vector3 O = ray.getOrigin(), D = ray.getDirection();
+        return isOccluded(O.x, O.y, O.z, D.x, D.y, D.z, maxDistance, new TraversalStack());
+    }
+
+    // As above for the ray from (ox, oy, oz) along (dx, dy, dz), keeping the nodes still to visit in stack
+    public boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+                              double maxDistance, TraversalStack stack) {
+        if (nodeCount == 0) return false;
+
+        double magnitude = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        double tMax = maxDistance / magnitude;
+        double ix = 1 / dx, iy = 1 / dy, iz = 1 / dz;
+
+        int[] nodes = stack.reserve(depth + 1);
+        int top = 0;
+        nodes[top++] = 0;
+        while (top > 0) {
+            int node = nodes[--top];
+            if (!intersectsBox(node, ox, oy, oz, ix, iy, iz, tMax)) continue;
+
+            if (counts[node] > 0) {
+                if (spheres != null) {
+                    if (spheres.occluded(ox, oy, oz, dx, dy, dz, magnitude,
+                            offsets[node], offsets[node] + counts[node], maxDistance)) return true;
+                } else {
+                    for (int i = offsets[node]; i < offsets[node] + counts[node]; i++) {
+                        if (objects[i].occludes(ox, oy, oz, dx, dy, dz, maxDistance)) return true;
+                    }
+                }
+            } else {
+                // Any blocker will do, so children are visited in a fixed order
+                nodes[top++] = offsets[node];
+                nodes[top++] = node + 1;
+            }
+        }
+        return false;
+    }
+
+    // Slab test of the ray against the box of a node, limited to ray parameters in [0, tMax]
+    private boolean intersectsBox(int node, double ox, double oy, double oz, double ix, double iy, double iz, double tMax) {
+        int b = 6 * node;
+        double tMin = 0;
+        double t1 = (bounds[b] - ox) * ix, t2 = (bounds[b + 3] - ox) * ix;
+        // Written as comparisons so that NaN from axis-parallel rays is ignored
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tMin) tMin = t1;
+        if (t2 < tMax) tMax = t2;
+        t1 = (bounds[b + 1] - oy) * iy;
+        t2 = (bounds[b + 4] - oy) * iy;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tMin) tMin = t1;
+        if (t2 < tMax) tMax = t2;
+        t1 = (bounds[b + 2] - oz) * iz;
+        t2 = (bounds[b + 5] - oz) * iz;
+        if (t1 > t2) { double tmp = t1; t1 = t2; t2 = tmp; }
+        if (t1 > tMin) tMin = t1;
+        if (t2 < tMax) tMax = t2;
+        return tMin <= tMax;
+    }
+}
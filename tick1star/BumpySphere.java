@@ -1,56 +1,133 @@
 package uk.ac.cam.cl.gfxintro.bh525.tick1star;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
-import java.io.PipedInputStream;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 public class BumpySphere extends Sphere {
 
-    private float BUMP_FACTOR = 2;
-    private float[][] heightMap;
+    private static final float BUMP_FACTOR = 2;
+
+    // Gradient maps of the bump maps read so far, shared by every sphere using the same image
+    private static final Map<Texture, float[]> gradientMaps = new WeakHashMap<>();
+
+    /*
+     * Height differences of the bump map towards the next row and the next column of each texel, packed in
+     * pairs row by row. Columns wrap around the sphere and the last row, at the south pole, is flat.
+     */
+    private float[] gradients;
     private int bumpMapHeight;
     private int bumpMapWidth;
+    String bumpMap;
+
+    // Whether the gradients are interpolated between texels rather than taken from the nearest one
+    private boolean bilinear = false;
 
+    // A null bumpMapImg leaves the surface smooth
     public BumpySphere(Vector3 position, double radius, ColorRGB colour, String bumpMapImg) {
         super(position, radius, colour);
+        this.bumpMap = bumpMapImg;
+        if (bumpMapImg == null) {
+            return;
+        }
         try {
-            BufferedImage inputImg = ImageIO.read(new File(bumpMapImg));
-            bumpMapHeight = inputImg.getHeight();
-            bumpMapWidth = inputImg.getWidth();
-            heightMap = new float[bumpMapHeight][bumpMapWidth];
-            for (int row = 0; row < bumpMapHeight; row++) {
-                for (int col = 0; col < bumpMapWidth; col++) {
-                    float height = (float) (inputImg.getRGB(col, row) & 0xFF) / 0xFF;
-                    heightMap[row][col] = BUMP_FACTOR * height;
-                }
-            }
+            Texture heights = TextureCache.getShared().get(bumpMapImg);
+            bumpMapHeight = heights.getHeight();
+            bumpMapWidth = heights.getWidth();
+            gradients = getGradients(heights);
         } catch (IOException e) {
             System.err.println("Error creating bump map");
             e.printStackTrace();
         }
     }
 
-    // Get normal to surface at position
+    public void setBilinear(boolean bilinear) {
+        this.bilinear = bilinear;
+    }
+
+    private static float[] getGradients(Texture heights) {
+        synchronized (gradientMaps) {
+            return gradientMaps.computeIfAbsent(heights, BumpySphere::calculateGradients);
+        }
+    }
+
+    // Heights are the blue channel of the image, scaled by BUMP_FACTOR
+    private static float[] calculateGradients(Texture heights) {
+        int width = heights.getWidth(), height = heights.getHeight();
+        float[] gradients = new float[2 * width * height];
+        for (int row = 0; row < height; row++) {
+            int nextRow = Math.min(row + 1, height - 1);
+            for (int col = 0; col < width; col++) {
+                int nextCol = (col + 1) % width;
+                float here = heightAt(heights, col, row);
+                gradients[2 * (row * width + col)] = heightAt(heights, col, nextRow) - here;
+                gradients[2 * (row * width + col) + 1] = heightAt(heights, nextCol, row) - here;
+            }
+        }
+        return gradients;
+    }
+
+    private static float heightAt(Texture heights, int col, int row) {
+        return BUMP_FACTOR * ((float) (heights.getTexel(col, row) & 0xFF) / 0xFF);
+    }
+
+    /*
+     * Get normal to surface at position, tilted by the bump map along the tangents of the sphere's parallel and
+     * meridian through it. The tangents follow from the normal directly, so no cross products, normalisations
+     * or library trigonometry are needed per hit.
+     */
     @Override
     public Vector3 getNormalAt(Vector3 position) {
-        Vector3 normal = super.getNormalAt(position);
-        double alpha = (Math.atan2(normal.z, -normal.x) + 2 * Math.PI) % (2 * Math.PI);
-        double beta = Math.asin(normal.y) + Math.PI / 2;
-        double alphaScaled = 1 - (alpha) / (2 * Math.PI);
-        double betaScaled = 1 - (beta) / (Math.PI);
-        int u = (int) (bumpMapWidth * alphaScaled);
-        int v = (int) (bumpMapHeight * betaScaled);
-        if (u >= bumpMapWidth - 1) u = bumpMapWidth - 2;
-        if (v >= bumpMapHeight - 1) v = bumpMapHeight - 2;
-        Vector3 P_u = new Vector3(0, 1, 0).cross(normal).normalised();
-        Vector3 P_v = P_u.cross(normal).scale(-1).normalised();
-        double B_u = heightMap[v + 1][u] - heightMap[v][u];
-        double B_v = heightMap[v][u + 1] - heightMap[v][u];
-
-        //TODO: return the normal modified by the bump map
-        return normal.add(P_u.scale(B_u)).add(P_v.scale(B_v)).normalised();
+        double nx = position.x - this.position.x, ny = position.y - this.position.y, nz = position.z - this.position.z;
+        double length = Math.sqrt(nx * nx + ny * ny + nz * nz);
+        nx /= length;
+        ny /= length;
+        nz /= length;
+
+        // Distance from the axis, zero at the poles where the tangents are undefined
+        double l = Math.sqrt(nx * nx + nz * nz);
+        if (gradients == null || l == 0) {
+            return new Vector3(nx, ny, nz);
+        }
+
+        double alpha = SphereMapping.atan2(nz, -nx);
+        if (alpha < 0) alpha += 2 * Math.PI;
+        double alphaScaled = 1 - alpha / (2 * Math.PI);
+        double betaScaled = 0.5 - SphereMapping.asin(Math.max(-1, Math.min(1, ny))) / Math.PI;
+        double B_u, B_v;
+        if (bilinear) {
+            double x = bumpMapWidth * alphaScaled - 0.5, y = bumpMapHeight * betaScaled - 0.5;
+            int x0 = (int) Math.floor(x), y0 = (int) Math.floor(y);
+            double fx = x - x0, fy = y - y0;
+            int x1 = Math.floorMod(x0 + 1, bumpMapWidth), y1 = Math.min(Math.max(y0 + 1, 0), bumpMapHeight - 1);
+            x0 = Math.floorMod(x0, bumpMapWidth);
+            y0 = Math.min(Math.max(y0, 0), bumpMapHeight - 1);
+            int i00 = 2 * (y0 * bumpMapWidth + x0), i01 = 2 * (y0 * bumpMapWidth + x1);
+            int i10 = 2 * (y1 * bumpMapWidth + x0), i11 = 2 * (y1 * bumpMapWidth + x1);
+            double w00 = (1 - fx) * (1 - fy), w01 = fx * (1 - fy), w10 = (1 - fx) * fy, w11 = fx * fy;
+            B_u = w00 * gradients[i00] + w01 * gradients[i01] + w10 * gradients[i10] + w11 * gradients[i11];
+            B_v = w00 * gradients[i00 + 1] + w01 * gradients[i01 + 1] + w10 * gradients[i10 + 1]
+                    + w11 * gradients[i11 + 1];
+        } else {
+            int u = Math.min((int) (bumpMapWidth * alphaScaled), bumpMapWidth - 1);
+            int v = Math.min((int) (bumpMapHeight * betaScaled), bumpMapHeight - 1);
+            B_u = gradients[2 * (v * bumpMapWidth + u)];
+            B_v = gradients[2 * (v * bumpMapWidth + u) + 1];
+        }
+
+        // P_u = (0, 1, 0) x N normalised, and P_v = N x P_u, which is already of unit length
+        double pux = nz / l, puz = -nx / l;
+        double pvx = ny * puz, pvy = l, pvz = -ny * pux;
+        double bx = nx + pux * B_u + pvx * B_v, by = ny + pvy * B_v, bz = nz + puz * B_u + pvz * B_v;
+        double bumped = Math.sqrt(bx * bx + by * by + bz * bz);
+        return new Vector3(bx / bumped, by / bumped, bz / bumped);
+    }
+
+    @Override
+    public String toXML() {
+        return String.format("<bumpy-sphere x=\"%s\" y=\"%s\" z=\"%s\" radius=\"%s\" %s%s/>\n", position.x, position.y,
+                position.z, radius, materialXML(colorName),
+                bumpMap == null ? "" : " bump-map=\"" + escapeXML(bumpMap) + "\"");
     }
 
 }
@@ -34,6 +34,13 @@ public class Camera {
 	public Ray castRay(int x, int y) {
 		double x_pos = (x_step_m - width_m) / 2 + x * x_step_m;
 		double y_pos = (y_step_m + height_m) / 2 - y * y_step_m;
-		return new Ray(new Vector3(0, 0, 0), new Vector3(x_pos, y_pos, 1).normalised());
+		return new Ray(new Vector3(0, 0, 0), new Vector3(x_pos, y_pos, 1).normalised(), 0, x_step_m);
+	}
+
+	// Casts a ray through a point of a pixel, (dx, dy) in [0, 1) being its position across the pixel
+	public Ray castRay(int x, int y, double dx, double dy) {
+		double x_pos = (x_step_m - width_m) / 2 + (x + dx - 0.5) * x_step_m;
+		double y_pos = (y_step_m + height_m) / 2 - (y + dy - 0.5) * y_step_m;
+		return new Ray(new Vector3(0, 0, 0), new Vector3(x_pos, y_pos, 1).normalised(), 0, x_step_m);
 	}
 }
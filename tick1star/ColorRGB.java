@@ -78,8 +78,12 @@ public class ColorRGB {
         return convertToByte(r) << 16 | convertToByte(g) << 8 | convertToByte(b) << 0;
     }
 
+    // As #rrggbb, rounding rather than truncating so that colours read from hex strings are written unchanged
     public String toHex() {
-        //return String.format("#%02x%02x%02x", (int) (r * 256), (int) (g * 256), (int) (b * 256));
-        return "#" + Integer.toHexString(toRGB()).substring(2);
+        return String.format("#%02x%02x%02x", roundToByte(r), roundToByte(g), roundToByte(b));
+    }
+
+    private static long roundToByte(double value) {
+        return Math.round(255 * Math.max(0, Math.min(1, value)));
     }
 }
\ No newline at end of file
@@ -38,24 +38,35 @@ public class Plane extends SceneObject {
 
     // Intersect this plane with ray
     @Override
-    public RaycastHit intersectionWith(Ray ray) {
+    public double intersect(Ray ray) {
         // Get ray parameters
         Vector3 O = ray.getOrigin();
         Vector3 D = ray.getDirection();
+        return intersect(O.x, O.y, O.z, D.x, D.y, D.z);
+    }
 
+    // As above for the ray from (ox, oy, oz) along (dx, dy, dz)
+    @Override
+    public double intersect(double ox, double oy, double oz, double dx, double dy, double dz) {
         // Get plane parameters
         Vector3 Q = this.point;
         Vector3 N = this.normal;
 
-        double s = (Q.subtract(O)).dot(N) / (D.dot(N));
-        if (s >= 0) {
-            double distance = s * D.magnitude();
-            Vector3 location = O.add(D.scale(s));
-            Vector3 normal = N.normalised();
-            return new RaycastHit(this, distance, location, normal);
+        double s = ((Q.x - ox) * N.x + (Q.y - oy) * N.y + (Q.z - oz) * N.z) / (dx * N.x + dy * N.y + dz * N.z);
+        if (s >= 0 && s < Double.POSITIVE_INFINITY) {
+            return s;
         }
 
-        return new RaycastHit();
+        return Double.POSITIVE_INFINITY;
+    }
+
+    // The stored normal is not necessarily unit length, so the hit normal is normalised here
+    @Override
+    public RaycastHit createHit(Ray ray, double s) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        Vector3 location = O.add(D.scale(s));
+        return new RaycastHit(this, s * D.magnitude(), location, normal.normalised());
     }
 
     // Get normal to the plane
@@ -65,7 +76,8 @@ public class Plane extends SceneObject {
     }
 
     public String toXML() {
-        return String.format("<plane x=\"%f\" y=\"%f\" z=\"%f\" nx=\"%f\" ny=\"%f\" nz=\"%f\" colour=\"#111111\" kS=\"0.8\"/>\n", point.x, point.y, point.z, normal.x, normal.y, normal.z);
+        return String.format("<plane x=\"%s\" y=\"%s\" z=\"%s\" nx=\"%s\" ny=\"%s\" nz=\"%s\" %s/>\n", point.x, point.y,
+                point.z, normal.x, normal.y, normal.z, materialXML(null));
     }
 
     @Override
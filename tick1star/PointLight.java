@@ -31,6 +31,7 @@ public class PointLight {
     }
 
     public String toXML() {
-        return String.format("<point-light x=\"%f\" y=\"%f\" z=\"%f\" colour=\"#FFFFFF\" intensity=\"80\"/>\n", position.x, position.y, position.z);
+        return String.format("<point-light x=\"%s\" y=\"%s\" z=\"%s\" colour=\"%s\" intensity=\"%s\"/>\n", position.x,
+                position.y, position.z, colour.toHex(), intensity);
     }
 }
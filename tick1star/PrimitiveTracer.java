@@ -0,0 +1,284 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import java.util.List;
+
+/*
+ * Alternative to Renderer.trace/illuminate/tonemap that keeps every intermediate vector and colour in
+ * primitive locals instead of allocating Vector3 and ColorRGB objects. The arithmetic is performed in the
+ * same order as the reference kernel, so the resulting pixels are identical. A tracer holds a small scratch
+ * buffer and must only be used by one thread at a time.
+ */
+public class PrimitiveTracer {
+
+    private final Renderer renderer;
+
+    // Colour written by trace, illuminate and tonemap
+    private final double[] colour = new double[3];
+
+    // Diffuse colour of the surface being illuminated
+    private final double[] surface = new double[3];
+
+    // Random numbers for depth of field and soft shadows, drawn in the same order as the reference kernel
+    private final Sampler sampler;
+
+    // Reused by every ray the tracer casts: the traversal of the hierarchy, the closest hit found and, for
+    // objects other than plain spheres and planes, the ray their hit record is built from
+    private final BVH.TraversalStack stack = new BVH.TraversalStack();
+    private final double[] hit = new double[2];
+    private final Ray scratch = new Ray(null, null);
+
+    public PrimitiveTracer(Renderer renderer) {
+        this(renderer, new Sampler(renderer.getSeed(), renderer.getSamplePattern()));
+    }
+
+    public PrimitiveTracer(Renderer renderer, Sampler sampler) {
+        this.renderer = renderer;
+        this.sampler = sampler;
+    }
+
+    // Tone mapped colour of one camera ray, averaged over the depth-of-field rays if enabled
+    public void renderSample(Scene scene, Ray ray) {
+        double sumR = 0, sumG = 0, sumB = 0;
+        if (renderer.USE_DOF) {
+            Vector3 O = ray.getOrigin(), D = ray.getDirection();
+            double scale = renderer.DOF_FOCAL_PLANE / D.z;
+            double fx = D.x * scale, fy = D.y * scale, fz = renderer.DOF_FOCAL_PLANE;
+            double amount = renderer.DOF_AMOUNT;
+            long lensSet = sampler.startSet();
+            int count = renderer.DOF_RAY_COUNT;
+            for (int i = 0; i < count; i++) {
+                double ox = O.x + (-amount / 2 + amount * sampler.sample(lensSet, i, count, 0));
+                double oy = O.y + (-amount / 2 + amount * sampler.sample(lensSet, i, count, 1));
+                double oz = O.z + 0;
+                double dx = fx - ox, dy = fy - oy, dz = fz - oz;
+                double m = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                trace(scene, ox, oy, oz, dx / m, dy / m, dz / m, 0, ray.getSpread(), renderer.bounces);
+                tonemap();
+                sumR = sumR + colour[0];
+                sumG = sumG + colour[1];
+                sumB = sumB + colour[2];
+            }
+            double inv = 1.0 / renderer.DOF_RAY_COUNT;
+            sumR = inv * sumR;
+            sumG = inv * sumG;
+            sumB = inv * sumB;
+        } else {
+            trace(scene, ray, renderer.bounces);
+            tonemap();
+            sumR = sumR + colour[0];
+            sumG = sumG + colour[1];
+            sumB = sumB + colour[2];
+        }
+        colour[0] = sumR;
+        colour[1] = sumG;
+        colour[2] = sumB;
+    }
+
+    // Trace the ray through the scene, leaving its linear colour in the scratch buffer
+    public void trace(Scene scene, Ray ray, int bouncesLeft) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        trace(scene, O.x, O.y, O.z, D.x, D.y, D.z, ray.getFootprint(0), ray.getSpread(), bouncesLeft);
+    }
+
+    // As above for the ray from (ox, oy, oz) along (dx, dy, dz) with the given footprint and spread
+    private void trace(Scene scene, double ox, double oy, double oz, double dx, double dy, double dz,
+                       double footprint, double spread, int bouncesLeft) {
+        SceneObject object = scene.findClosestObject(ox, oy, oz, dx, dy, dz, hit, stack);
+        double s = hit[1];
+        if (object == null || s == Double.POSITIVE_INFINITY) {
+            ColorRGB background = renderer.backgroundColor;
+            colour[0] = background.r;
+            colour[1] = background.g;
+            colour[2] = background.b;
+            return;
+        }
+
+        VisibilityStats visibilityStats = renderer.getVisibilityStats();
+        if (visibilityStats != null) {
+            visibilityStats.record(object);
+        }
+
+        // P = O + sD and the normal there, as createHit would compute them
+        double px, py, pz, nx, ny, nz, distance;
+        if (object.getClass() == Sphere.class) {
+            px = ox + dx * s;
+            py = oy + dy * s;
+            pz = oz + dz * s;
+            distance = s * Math.sqrt(dx * dx + dy * dy + dz * dz);
+            Vector3 C = ((Sphere) object).position;
+            nx = px - C.x;
+            ny = py - C.y;
+            nz = pz - C.z;
+            double m = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            nx = nx / m;
+            ny = ny / m;
+            nz = nz / m;
+        } else if (object.getClass() == Plane.class) {
+            px = ox + dx * s;
+            py = oy + dy * s;
+            pz = oz + dz * s;
+            distance = s * Math.sqrt(dx * dx + dy * dy + dz * dz);
+            Vector3 N = ((Plane) object).normal;
+            double m = N.magnitude();
+            nx = N.x / m;
+            ny = N.y / m;
+            nz = N.z / m;
+        } else {
+            // Other objects may shade their hits differently, so they build the record themselves
+            scratch.set(new Vector3(ox, oy, oz), new Vector3(dx, dy, dz), footprint, spread);
+            RaycastHit closestHit = object.createHit(scratch, s);
+            Vector3 P = closestHit.getLocation();
+            Vector3 N = closestHit.getNormal();
+            px = P.x;
+            py = P.y;
+            pz = P.z;
+            nx = N.x;
+            ny = N.y;
+            nz = N.z;
+            distance = closestHit.getDistance();
+        }
+
+        footprint = footprint + spread * distance;
+        illuminate(scene, object, px, py, pz, nx, ny, nz, ox, oy, oz, footprint);
+        double reflectivity = object.getReflectivity();
+        if (bouncesLeft == 0 || reflectivity == 0) {
+            return;
+        }
+        double directR = colour[0], directG = colour[1], directB = colour[2];
+
+        // R = (O - P).reflectIn(N).normalised()
+        double vx = ox - px, vy = oy - py, vz = oz - pz;
+        double k = 2 * (vx * nx + vy * ny + vz * nz);
+        double rx = k * nx - vx, ry = k * ny - vy, rz = k * nz - vz;
+        double m = Math.sqrt(rx * rx + ry * ry + rz * rz);
+        rx = rx / m;
+        ry = ry / m;
+        rz = rz / m;
+
+        double eps = renderer.EPSILON;
+        trace(scene, px + eps * rx, py + eps * ry, pz + eps * rz, rx, ry, rz, footprint, spread, bouncesLeft - 1);
+
+        double direct = 1.0 - reflectivity;
+        colour[0] = direct * directR + reflectivity * colour[0];
+        colour[1] = direct * directG + reflectivity * colour[1];
+        colour[2] = direct * directB + reflectivity * colour[2];
+    }
+
+    // Phong illumination with shadows at P with normal N seen from O, leaving the colour in the scratch buffer
+    public void illuminate(Scene scene, SceneObject object, double px, double py, double pz,
+                           double nx, double ny, double nz, double ox, double oy, double oz) {
+        illuminate(scene, object, px, py, pz, nx, ny, nz, ox, oy, oz, 0);
+    }
+
+    // As above, with textures filtered over a region footprint wide
+    public void illuminate(Scene scene, SceneObject object, double px, double py, double pz,
+                           double nx, double ny, double nz, double ox, double oy, double oz, double footprint) {
+        ColorRGB I_a = scene.getAmbientLighting();
+        double[] C_diff = surface;
+        if (object.getClass() == Sphere.class || object.getClass() == Plane.class) {
+            C_diff[0] = object.colour.r;
+            C_diff[1] = object.colour.g;
+            C_diff[2] = object.colour.b;
+        } else {
+            object.getColour(px, py, pz, footprint, C_diff);
+        }
+
+        double k_d = object.getPhong_kD();
+        double k_s = object.getPhong_kS();
+        double alpha = object.getPhong_alpha();
+
+        double r = 0 + C_diff[0] * I_a.r;
+        double g = 0 + C_diff[1] * I_a.g;
+        double b = 0 + C_diff[2] * I_a.b;
+
+        List<PointLight> pointLights = scene.getPointLights();
+        for (int i = 0; i < pointLights.size(); i++) {
+            PointLight light = pointLights.get(i);
+            Vector3 lightPosition = light.getPosition();
+
+            double tx = lightPosition.x - px, ty = lightPosition.y - py, tz = lightPosition.z - pz;
+            double distanceToLight = Math.sqrt(tx * tx + ty * ty + tz * tz);
+            ColorRGB C_spec = light.getColour();
+            double falloff = light.getIntensity() / (Math.PI * 4 * Math.pow(distanceToLight, 2));
+            ColorRGB lightColour = light.getColour();
+            double Ir = falloff * lightColour.r, Ig = falloff * lightColour.g, Ib = falloff * lightColour.b;
+
+            double m = Math.sqrt(nx * nx + ny * ny + nz * nz);
+            nx = nx / m;
+            ny = ny / m;
+            nz = nz / m;
+            double lx = tx / distanceToLight, ly = ty / distanceToLight, lz = tz / distanceToLight;
+            double vx = ox - px, vy = oy - py, vz = oz - pz;
+            m = Math.sqrt(vx * vx + vy * vy + vz * vz);
+            vx = vx / m;
+            vy = vy / m;
+            vz = vz / m;
+            double s = 2 * (lx * nx + ly * ny + lz * nz);
+            double Rx = -lx + s * nx, Ry = -ly + s * ny, Rz = -lz + s * nz;
+
+            int visibleCount = 0;
+            long shadowSet = sampler.startSet();
+            int count = renderer.getShadowRayCount();
+            double lightSize = renderer.getLightSize();
+            for (int j = 0; j < count; j++) {
+                // Same as Vector3.insideUnitSphere(...).scale(lightSize) on the same points
+                double radius = Math.cbrt(sampler.sample(shadowSet, j, count, 0));
+                double cosTheta = 1 - 2 * sampler.sample(shadowSet, j, count, 1);
+                double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+                double phi = sampler.sample(shadowSet, j, count, 2) * Math.PI * 2;
+                double lightX = lightPosition.x + lightSize * (radius * sinTheta * Math.cos(phi));
+                double lightY = lightPosition.y + lightSize * (radius * sinTheta * Math.sin(phi));
+                double lightZ = lightPosition.z + lightSize * (radius * cosTheta);
+
+                double sx = lightX - px, sy = lightY - py, sz = lightZ - pz;
+                double distanceFromLight = Math.sqrt(sx * sx + sy * sy + sz * sz);
+                double eps = renderer.EPSILON;
+                if (!scene.isOccluded(px + eps * nx, py + eps * ny, pz + eps * nz, sx / distanceFromLight,
+                        sy / distanceFromLight, sz / distanceFromLight, distanceFromLight, stack)) {
+                    visibleCount++;
+                }
+            }
+
+            double visibleRatio = (double) visibleCount / count;
+
+            double diffuse = Math.max(0, nx * lx + ny * ly + nz * lz);
+            double specular = Math.pow(Math.max(0, Rx * vx + Ry * vy + Rz * vz), alpha);
+            r = r + visibleRatio * (diffuse * (k_d * C_diff[0] * Ir));
+            g = g + visibleRatio * (diffuse * (k_d * C_diff[1] * Ig));
+            b = b + visibleRatio * (diffuse * (k_d * C_diff[2] * Ib));
+            r = r + visibleRatio * (specular * (k_s * C_spec.r * Ir));
+            g = g + visibleRatio * (specular * (k_s * C_spec.g * Ig));
+            b = b + visibleRatio * (specular * (k_s * C_spec.b * Ib));
+        }
+        colour[0] = r;
+        colour[1] = g;
+        colour[2] = b;
+    }
+
+    // Same sigmoidal tone mapping and gamma encoding as Renderer.tonemap, applied to the scratch buffer
+    public void tonemap() {
+        double invGamma = 1. / 2.2;
+        double a = 2;
+        double b = 1.3;
+        double offset = Math.pow(0.5 / a, b);
+        for (int c = 0; c < 3; c++) {
+            double pow = Math.pow(colour[c], b);
+            double display = pow * (1 / (pow + offset));
+            colour[c] = Math.pow(display, invGamma);
+        }
+    }
+
+    public double[] getColour() {
+        return colour;
+    }
+
+    // The scratch colour packed into an RGB value, like ColorRGB.toRGB
+    public int toRGB() {
+        return convertToByte(colour[0]) << 16 | convertToByte(colour[1]) << 8 | convertToByte(colour[2]);
+    }
+
+    private static int convertToByte(double value) {
+        return (int) (255 * Math.max(0, Math.min(1, value)));
+    }
+}
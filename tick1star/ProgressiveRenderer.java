@@ -0,0 +1,347 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Renders the best image possible within a budget. Passes of one sample per pixel are added to a float
+ * accumulation buffer of linear colour until a time, pass or quality budget is reached, optionally writing
+ * the image so far at regular intervals. The final image is the average of the passes through Renderer.tonemap.
+ * Sampling, threads and kernel are those configured on the renderer.
+ *
+ * Long renders can be checkpointed to a file at regular intervals and resumed from it. Samples only depend on
+ * the seed, pixel and pass, so a resumed render produces exactly the same image as an uninterrupted one. The
+ * budgets and the time already spent are saved with the checkpoint, so a resumed render stops where the
+ * original one would have.
+ */
+public class ProgressiveRenderer {
+
+    private final Renderer renderer;
+    private final int width, height;
+
+    // Sums over all passes of the linear colour (3 per pixel) and of the squared luminance of every pixel
+    private final float[] accumulation;
+    private final float[] luminanceSquares;
+
+    // Number of passes accumulated so far
+    private int passes;
+
+    // Tiles of the pass in progress that have been added to the buffers
+    private final BitSet tilesDone;
+
+    // Held shared while a tile is rendered and exclusively while a checkpoint is written, so that a checkpoint
+    // never contains part of a tile
+    private final ReadWriteLock tileLock = new ReentrantReadWriteLock();
+
+    // Checkpoints are written every checkpointIntervalNanos while rendering, and once rendering stops
+    private Path checkpointFile;
+    private long checkpointIntervalNanos;
+    private volatile long lastCheckpoint;
+
+    // Identifies checkpoint files and their layout
+    private static final int CHECKPOINT_MAGIC = 0x54314350;
+    private static final int CHECKPOINT_VERSION = 2;
+
+    // Largest set of points a sample pattern is spread over. Renders with more passes, or with only a time or
+    // error budget, repeat the pattern with a fresh scramble every PATTERN_PASSES passes
+    private static final int PATTERN_PASSES = 4096;
+
+    // Rendering stops as soon as one of the budgets is reached
+    private long timeBudgetNanos = Long.MAX_VALUE;
+    private int maxPasses = Integer.MAX_VALUE;
+    private double errorTarget = 0;
+
+    // Time spent rendering by previous calls to render, including those of the run a checkpoint was written by
+    private long elapsedNanos;
+
+    // Value of System.nanoTime() at which elapsedNanos was 0, while render is running
+    private volatile long renderStart;
+    private volatile boolean rendering;
+
+    // Intermediate images are written every snapshotIntervalNanos to files named by formatting the pass count
+    private long snapshotIntervalNanos = 0;
+    private String snapshotFilePattern;
+
+    public ProgressiveRenderer(Renderer renderer) {
+        this.renderer = renderer;
+        this.width = renderer.getWidth();
+        this.height = renderer.getHeight();
+        this.accumulation = new float[3 * width * height];
+        this.luminanceSquares = new float[width * height];
+        this.tilesDone = new BitSet(renderer.getTileCount());
+    }
+
+    public void setTimeBudget(double seconds) {
+        this.timeBudgetNanos = (long) (seconds * 1e9);
+    }
+
+    public void setMaxPasses(int maxPasses) {
+        this.maxPasses = Math.max(1, maxPasses);
+    }
+
+    // Stop once getError() is at most errorTarget, 0 to disable
+    public void setErrorTarget(double errorTarget) {
+        this.errorTarget = errorTarget;
+    }
+
+    // Write the image every intervalSeconds to String.format(filePattern, passes), e.g. "progress-%04d.png"
+    public void setSnapshots(double intervalSeconds, String filePattern) {
+        this.snapshotIntervalNanos = (long) (intervalSeconds * 1e9);
+        this.snapshotFilePattern = filePattern;
+    }
+
+    public void setCheckpoints(double intervalSeconds, Path file) {
+        this.checkpointIntervalNanos = (long) (intervalSeconds * 1e9);
+        this.checkpointFile = file;
+    }
+
+    public int getPasses() {
+        return passes;
+    }
+
+    /*
+     * Estimated relative error of the image: the root mean square over pixels of the standard error of their
+     * mean luminance, divided by the mean luminance of the image. Infinite until two passes are accumulated.
+     */
+    public double getError() {
+        if (passes < 2) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double varianceSum = 0, luminanceSum = 0;
+        for (int i = 0; i < width * height; i++) {
+            double mean = (0.2126 * accumulation[3 * i] + 0.7152 * accumulation[3 * i + 1]
+                    + 0.0722 * accumulation[3 * i + 2]) / passes;
+            double variance = Math.max(0, luminanceSquares[i] / passes - mean * mean) * passes / (passes - 1);
+            varianceSum += variance / passes;
+            luminanceSum += mean;
+        }
+        double meanLuminance = luminanceSum / (width * height);
+        return meanLuminance > 0 ? Math.sqrt(varianceSum / (width * height)) / meanLuminance : 0;
+    }
+
+    // Whether a budget has been set, without one render would never return
+    public boolean isBounded() {
+        return maxPasses < Integer.MAX_VALUE || timeBudgetNanos < Long.MAX_VALUE || errorTarget > 0;
+    }
+
+    /*
+     * Add passes to the image until a budget is reached, and return the tone mapped result. Can be called again
+     * with larger budgets to keep refining the same image. The time budget covers every call, so a call made
+     * once it is spent, like one resumed from a checkpoint written at the end of the original render, only adds
+     * a single pass.
+     */
+    public BufferedImage render(Scene scene) {
+        if (!isBounded()) {
+            throw new IllegalStateException("No time, pass or error budget set");
+        }
+        Camera camera = new Camera(width, height);
+        renderStart = System.nanoTime() - elapsedNanos;
+        rendering = true;
+        long nextSnapshot = elapsedNanos + snapshotIntervalNanos;
+        lastCheckpoint = System.nanoTime();
+        try {
+            while (passes < maxPasses) {
+                renderer.renderTiles(scene, new PassTask(scene, camera, passes), false);
+                passes++;
+                tilesDone.clear();
+
+                long elapsed = System.nanoTime() - renderStart;
+                if (elapsed >= timeBudgetNanos || (errorTarget > 0 && getError() <= errorTarget)) {
+                    break;
+                }
+                if (snapshotIntervalNanos > 0 && elapsed >= nextSnapshot) {
+                    writeSnapshot();
+                    nextSnapshot = elapsed + snapshotIntervalNanos;
+                }
+            }
+        } finally {
+            elapsedNanos = System.nanoTime() - renderStart;
+            rendering = false;
+        }
+        if (checkpointFile != null) {
+            writeCheckpoint();
+        }
+        return getImage();
+    }
+
+    // Adds one pass to the tiles not yet done, checkpointing between tiles when one is due
+    private class PassTask implements Renderer.PixelTask {
+        private final Scene scene;
+        private final Camera camera;
+        private final int pass;
+
+        PassTask(Scene scene, Camera camera, int pass) {
+            this.scene = scene;
+            this.camera = camera;
+            this.pass = pass;
+        }
+
+        @Override
+        public void render(int x, int y, PrimitiveTracer tracer, Sampler sampler) {
+            renderer.accumulatePass(scene, camera, x, y, pass, Math.min(maxPasses, PATTERN_PASSES), tracer, sampler,
+                    accumulation, luminanceSquares);
+        }
+
+        @Override
+        public boolean startTile(int tile) {
+            synchronized (tilesDone) {
+                if (tilesDone.get(tile)) return false;
+            }
+            tileLock.readLock().lock();
+            return true;
+        }
+
+        @Override
+        public void finishTile(int tile, boolean completed) {
+            if (completed) {
+                synchronized (tilesDone) {
+                    tilesDone.set(tile);
+                }
+            }
+            tileLock.readLock().unlock();
+            if (completed && checkpointFile != null && checkpointIntervalNanos > 0
+                    && System.nanoTime() - lastCheckpoint >= checkpointIntervalNanos) {
+                tileLock.writeLock().lock();
+                try {
+                    // Another tile may have written it while this one waited for the lock
+                    if (System.nanoTime() - lastCheckpoint >= checkpointIntervalNanos) {
+                        writeCheckpoint();
+                    }
+                } finally {
+                    tileLock.writeLock().unlock();
+                }
+            }
+        }
+    }
+
+    /*
+     * Write the buffers, pass count and finished tiles to the checkpoint file, with the settings that determine
+     * the samples so that a mismatching resume is detected, and the budgets with the time spent so far. The file
+     * is replaced atomically where the file system allows, so a crash while writing leaves the previous
+     * checkpoint intact.
+     */
+    private void writeCheckpoint() {
+        tileLock.writeLock().lock();
+        try {
+            long[] tiles;
+            synchronized (tilesDone) {
+                tiles = tilesDone.toLongArray();
+            }
+            long elapsed = rendering ? System.nanoTime() - renderStart : elapsedNanos;
+            ByteBuffer header = ByteBuffer.allocate(96 + 8 * tiles.length);
+            header.putInt(CHECKPOINT_MAGIC).putInt(CHECKPOINT_VERSION);
+            header.putInt(width).putInt(height).putInt(renderer.bounces);
+            header.putLong(renderer.getSeed()).putInt(renderer.getSamplePattern().ordinal()).putInt(maxPasses);
+            header.putInt(renderer.getShadowRayCount()).putDouble(renderer.getLightSize());
+            header.putLong(timeBudgetNanos).putDouble(errorTarget).putLong(elapsed);
+            header.putInt(passes).putInt(tiles.length);
+            for (long word : tiles) header.putLong(word);
+            header.flip();
+
+            ByteBuffer data = ByteBuffer.allocate(4 * (accumulation.length + luminanceSquares.length));
+            data.asFloatBuffer().put(accumulation).put(luminanceSquares);
+
+            Path temporary = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                while (header.hasRemaining()) channel.write(header);
+                while (data.hasRemaining()) channel.write(data);
+                channel.force(false);
+            }
+            try {
+                Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, checkpointFile, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("Error writing checkpoint " + checkpointFile);
+            e.printStackTrace();
+        } finally {
+            lastCheckpoint = System.nanoTime();
+            tileLock.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Continue from a checkpoint written by a render of the same size and sampling settings. The maximum number
+     * of passes must also be the same, as it determines how the sample patterns are spread. Budgets that have
+     * not been set are restored from the checkpoint, and time already spent counts towards the time budget.
+     */
+    public void resume(Path file) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file));
+        try {
+            if (buffer.getInt() != CHECKPOINT_MAGIC || buffer.getInt() != CHECKPOINT_VERSION) {
+                throw new IOException("Not a checkpoint file: " + file);
+            }
+            if (buffer.getInt() != width || buffer.getInt() != height || buffer.getInt() != renderer.bounces
+                    || buffer.getLong() != renderer.getSeed()
+                    || buffer.getInt() != renderer.getSamplePattern().ordinal()) {
+                throw new IOException("Checkpoint " + file + " was written with different render settings");
+            }
+            int savedMaxPasses = buffer.getInt();
+            if ((maxPasses != Integer.MAX_VALUE && savedMaxPasses != maxPasses)
+                    || buffer.getInt() != renderer.getShadowRayCount()
+                    || buffer.getDouble() != renderer.getLightSize()) {
+                throw new IOException("Checkpoint " + file + " was written with different render settings");
+            }
+            long savedTimeBudget = buffer.getLong();
+            double savedErrorTarget = buffer.getDouble();
+            long savedElapsed = buffer.getLong();
+            int savedPasses = buffer.getInt();
+            long[] tiles = new long[buffer.getInt()];
+            for (int i = 0; i < tiles.length; i++) tiles[i] = buffer.getLong();
+            if (buffer.remaining() != 4 * (accumulation.length + luminanceSquares.length)) {
+                throw new IOException("Checkpoint " + file + " is truncated");
+            }
+            buffer.asFloatBuffer().get(accumulation).get(luminanceSquares);
+            passes = savedPasses;
+            maxPasses = savedMaxPasses;
+            if (timeBudgetNanos == Long.MAX_VALUE) timeBudgetNanos = savedTimeBudget;
+            if (errorTarget == 0) errorTarget = savedErrorTarget;
+            elapsedNanos = savedElapsed;
+            tilesDone.clear();
+            tilesDone.or(BitSet.valueOf(tiles));
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Checkpoint " + file + " is truncated");
+        }
+    }
+
+    private void writeSnapshot() {
+        String file = String.format(snapshotFilePattern, passes);
+        try {
+            ImageIO.write(getImage(), "png", new File(file));
+        } catch (IOException e) {
+            System.err.println("Error writing snapshot " + file);
+            e.printStackTrace();
+        }
+    }
+
+    // The average of the passes so far, tone mapped
+    public BufferedImage getImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        double scale = 1.0 / Math.max(1, passes);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = 3 * (y * width + x);
+                ColorRGB linearRGB = new ColorRGB(accumulation[i] * scale, accumulation[i + 1] * scale,
+                        accumulation[i + 2] * scale);
+                image.setRGB(x, y, renderer.tonemap(linearRGB).toRGB());
+            }
+        }
+        return image;
+    }
+}
@@ -5,11 +5,29 @@ public class Ray {
 	// Ray parameters
 	private Vector3 origin, direction;
 
+	// Width of the cone of space the ray stands for at its origin, and its growth per unit distance
+	private double footprint, spread;
+
 	public Ray(Vector3 origin, Vector3 direction) {
 		this.origin = origin;
 		this.direction = direction;
 	}
 
+	public Ray(Vector3 origin, Vector3 direction, double footprint, double spread) {
+		this.origin = origin;
+		this.direction = direction;
+		this.footprint = footprint;
+		this.spread = spread;
+	}
+
+	// Point the ray elsewhere, so that a tracer can reuse one ray rather than allocate one per hit
+	void set(Vector3 origin, Vector3 direction, double footprint, double spread) {
+		this.origin = origin;
+		this.direction = direction;
+		this.footprint = footprint;
+		this.spread = spread;
+	}
+
 	public Vector3 getOrigin() {
 		return origin;
 	}
@@ -17,6 +35,15 @@ public class Ray {
 	public Vector3 getDirection() {
 		return direction;
 	}
+
+	public double getSpread() {
+		return spread;
+	}
+
+	// Width of the ray's cone at the given distance along it, used to filter textures
+	public double getFootprint(double distance) {
+		return footprint + spread * distance;
+	}
 	
 	// Determine position for certain scalar parameter distance i.e. (origin + direction * distance)
 	public Vector3 evaluateAt(double distance) {
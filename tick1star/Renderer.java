@@ -1,37 +1,71 @@
 package uk.ac.cam.cl.gfxintro.bh525.tick1star;
 
 import java.awt.image.BufferedImage;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Renderer {
 
     // Distributed shadow ray constants
     private final boolean USE_SOFT_SHADOW = true; //TODO finish this
-    private final int SHADOW_RAY_COUNT = 1; // no. of spawned
-    private final double LIGHT_SIZE = 0; // size of spherical light
+
+    // Distributed shadow ray settings, see setSoftShadows
+    private int shadowRayCount = 1; // no. of spawned
+    private double lightSize = 0; // size of spherical light
 
     // Distributed depth-of-field constants
-    private final boolean USE_DOF = false;
-    private final int DOF_RAY_COUNT = 5; // no. of spawned DoF rays
-    private final double DOF_FOCAL_PLANE = 8.8; // focal length of camera
-    private final double DOF_AMOUNT = 0.30; // amount of DoF effect
+    final boolean USE_DOF = false;
+    final int DOF_RAY_COUNT = 5; // no. of spawned DoF rays
+    final double DOF_FOCAL_PLANE = 8.8; // focal length of camera
+    final double DOF_AMOUNT = 0.30; // amount of DoF effect
 
     // The width and height of the image in pixels
     private int width, height;
 
     // Bias factor for reflected and shadow rays
-    private final double EPSILON = 0.0001;
+    final double EPSILON = 0.0001;
 
     // The number of times a ray can bounce for reflection
-    private int bounces;
+    int bounces;
 
     // Background colour of the image
-    private ColorRGB backgroundColor = new ColorRGB(0.001);
+    ColorRGB backgroundColor = new ColorRGB(0.001);
+
+    // Number of worker threads, 1 renders sequentially on the calling thread
+    private int threads = 1;
+
+    // Workers of tiled renders, created on first use and kept for every later render with the same threads
+    private ForkJoinPool pool;
+
+    // Side length of the square tiles the image is split into for parallel rendering
+    private final int TILE_SIZE = 16;
 
-    public HashSet<SceneObject> visibleObjects = new HashSet<>();
-    public HashMap<Integer, Integer> visibleObjectHashes = new HashMap<>();
+    // Whether pixels are shaded by the allocation-free PrimitiveTracer instead of trace/illuminate/tonemap
+    private boolean primitiveKernel = false;
+
+    // Seed of the samplers, a render is deterministic for a given seed regardless of the number of threads
+    private long seed = 0;
+
+    // How the points of shadow rays, depth-of-field rays and supersamples are spread
+    private Sampler.Pattern samplePattern = Sampler.Pattern.RANDOM;
+
+    /*
+     * Adaptive supersampling: samples are added to a pixel until the standard error of their luminance falls
+     * below sampleErrorThreshold, taking between minSamples and maxSamples. A single sample through the centre
+     * of the pixel is taken when maxSamples is 1.
+     */
+    private int minSamples = 1, maxSamples = 1;
+    private double sampleErrorThreshold = 0;
+
+    // Camera samples taken by the most recent render
+    private final LongAdder samplesTaken = new LongAdder();
+
+    // Whether to record which objects are hit, and the statistics of the most recent render
+    private boolean collectVisibility = false;
+    private VisibilityStats visibilityStats;
 
     public Renderer(int width, int height, int bounces) {
         this.width = width;
@@ -39,20 +73,80 @@ public class Renderer {
         this.bounces = bounces;
     }
 
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSamplePattern(Sampler.Pattern samplePattern) {
+        this.samplePattern = samplePattern;
+    }
+
+    public Sampler.Pattern getSamplePattern() {
+        return samplePattern;
+    }
+
+    public void setSoftShadows(int shadowRayCount, double lightSize) {
+        this.shadowRayCount = Math.max(1, shadowRayCount);
+        this.lightSize = lightSize;
+    }
+
+    public int getShadowRayCount() {
+        return shadowRayCount;
+    }
+
+    public double getLightSize() {
+        return lightSize;
+    }
+
+    public void setAdaptiveSampling(int minSamples, int maxSamples, double errorThreshold) {
+        this.maxSamples = Math.max(1, maxSamples);
+        this.minSamples = Math.max(Math.min(2, this.maxSamples), Math.min(minSamples, this.maxSamples));
+        this.sampleErrorThreshold = errorThreshold;
+    }
+
+    // Average number of camera samples per pixel in the most recent render
+    public double getAverageSamplesPerPixel() {
+        return samplesTaken.sum() / (double) (width * height);
+    }
+
+    public void setPrimitiveKernel(boolean primitiveKernel) {
+        this.primitiveKernel = primitiveKernel;
+    }
+
+    public void setCollectVisibility(boolean collectVisibility) {
+        this.collectVisibility = collectVisibility;
+    }
+
+    // Objects hit by rays in the most recent render, or null if collection was disabled
+    public VisibilityStats getVisibilityStats() {
+        return visibilityStats;
+    }
+
     /*
      * Trace the ray through the supplied scene, returning the colour to be rendered.
      * The bouncesLeft parameter is for rendering reflective surfaces.
      */
-    public static int hashPos(Vector3 position) {
-        Vector3 pos = position.scale(123243);
-        int xx = (int) pos.x;
-        int yy = (int) pos.y;
-        int zz = (int) pos.z;
-        int val = xx * 103 + 1234 * yy - 27385345 * zz + 123124;
-        return val;
+    protected ColorRGB trace(Scene scene, Ray ray, int bouncesLeft) {
+        return trace(scene, ray, bouncesLeft, new Sampler(seed, samplePattern));
     }
 
-    protected ColorRGB trace(Scene scene, Ray ray, int bouncesLeft) {
+    protected ColorRGB trace(Scene scene, Ray ray, int bouncesLeft, Sampler sampler) {
 
         // Find closest intersection of ray in the scene
         RaycastHit closestHit = scene.findClosestIntersection(ray);
@@ -63,14 +157,8 @@ public class Renderer {
             return backgroundColor;
         }
 
-        visibleObjects.add(object);
-        if (true) {
-            int val = 0;//hashPos(((Sphere) object).position);
-            if (visibleObjectHashes.containsKey(val)) {
-                visibleObjectHashes.put(val, visibleObjectHashes.get(val) + 1);
-            } else {
-                visibleObjectHashes.put(val, 1);
-            }
+        if (visibilityStats != null) {
+            visibilityStats.record(object);
         }
 
         // Otherwise calculate colour at intersection and return
@@ -81,8 +169,11 @@ public class Renderer {
 
         // Illuminate the surface
 
+        // Width of the pixel's cone where it meets the surface, over which textures are filtered
+        double footprint = ray.getFootprint(closestHit.getDistance());
+
         // Calculate direct illumination at the point
-        ColorRGB directIllumination = this.illuminate(scene, object, P, N, O);
+        ColorRGB directIllumination = this.illuminate(scene, object, P, N, O, footprint, sampler);
         // Get reflectivity of object
         double reflectivity = object.getReflectivity();
         if (bouncesLeft == 0 || reflectivity == 0) {
@@ -92,9 +183,9 @@ public class Renderer {
             ColorRGB reflectedIllumination;
             Vector3 R = (O.subtract(P)).reflectIn(N).normalised();
 
-            Ray reflectedRay = new Ray(P.add(R.scale(EPSILON)), R);
+            Ray reflectedRay = new Ray(P.add(R.scale(EPSILON)), R, footprint, ray.getSpread());
 
-            reflectedIllumination = trace(scene, reflectedRay, bouncesLeft - 1);
+            reflectedIllumination = trace(scene, reflectedRay, bouncesLeft - 1, sampler);
 
 
             // Scale direct and reflective illumination to conserve light
@@ -109,13 +200,18 @@ public class Renderer {
      * Illuminate a surface on and object in the scene at a given position P and surface normal N,
      * relative to ray originating at O
      */
-    private ColorRGB illuminate(Scene scene, SceneObject object, Vector3 P, Vector3 N, Vector3 O) {
+    ColorRGB illuminate(Scene scene, SceneObject object, Vector3 P, Vector3 N, Vector3 O) {
+        return illuminate(scene, object, P, N, O, 0, new Sampler(seed, samplePattern));
+    }
+
+    ColorRGB illuminate(Scene scene, SceneObject object, Vector3 P, Vector3 N, Vector3 O, double footprint,
+                        Sampler sampler) {
 
         ColorRGB colourToReturn = new ColorRGB(0);
 
         ColorRGB I_a = scene.getAmbientLighting(); // Ambient illumination intensity
 
-        ColorRGB C_diff = object.getColour(P); // Diffuse colour defined by the object
+        ColorRGB C_diff = object.getColour(P, footprint); // Diffuse colour defined by the object
 
         // Get Phong coefficients
         double k_d = object.getPhong_kD();
@@ -142,20 +238,22 @@ public class Renderer {
 
 
             int visibleCount = 0;
-            for (int j = 0; j < SHADOW_RAY_COUNT; j++) {
-                Vector3 offset = Vector3.randomInsideUnitSphere().scale(LIGHT_SIZE);
+            long shadowSet = sampler.startSet();
+            for (int j = 0; j < shadowRayCount; j++) {
+                Vector3 offset = Vector3.insideUnitSphere(
+                        sampler.sample(shadowSet, j, shadowRayCount, 0),
+                        sampler.sample(shadowSet, j, shadowRayCount, 1),
+                        sampler.sample(shadowSet, j, shadowRayCount, 2)).scale(lightSize);
                 Vector3 lightPos = light.getPosition().add(offset);
                 Vector3 L2 = (lightPos.subtract(P)).normalised();
-                Ray shadowRay = new Ray(P.add(N.scale(EPSILON)), L2);
-                RaycastHit firstHit = scene.findClosestIntersection(shadowRay);
                 double distanceFromLight = (lightPos.subtract(P)).magnitude();
-                if (firstHit.getDistance() >= distanceFromLight) {
-                    // Point P is in shadow (behind an object from light)
+                if (!scene.isOccluded(P.add(N.scale(EPSILON)), L2, distanceFromLight)) {
+                    // Nothing between P and the light
                     visibleCount++;
                 }
             }
 
-            double visibleRatio = (double) visibleCount / SHADOW_RAY_COUNT;
+            double visibleRatio = (double) visibleCount / shadowRayCount;
 
             ColorRGB diffuse = C_diff.scale(k_d).scale(I).scale(Math.max(0, N.dot(L)));
             ColorRGB specular = C_spec.scale(k_s).scale(I).scale(Math.pow(Math.max(0, R.dot(V)), alpha));
@@ -167,6 +265,16 @@ public class Renderer {
 
     // Render image from scene, with camera at origin
     public BufferedImage render(Scene scene) {
+        visibilityStats = collectVisibility ? new VisibilityStats(scene) : null;
+        samplesTaken.reset();
+        BufferedImage image = threads > 1 ? renderParallel(scene) : renderSequential(scene);
+        if (visibilityStats != null) {
+            visibilityStats.merge();
+        }
+        return image;
+    }
+
+    private BufferedImage renderSequential(Scene scene) {
 
         // Set up image
         BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
@@ -174,36 +282,13 @@ public class Renderer {
         // Set up camera
         Camera camera = new Camera(width, height);
 
+        Sampler sampler = new Sampler(seed, samplePattern);
+        PrimitiveTracer tracer = primitiveKernel ? new PrimitiveTracer(this, sampler) : null;
+
         // Loop over all pixels
         for (int y = 0; y < height; ++y) {
             for (int x = 0; x < width; ++x) {
-                Ray ray = camera.castRay(x, y); // Cast ray through pixel
-                ColorRGB sum = new ColorRGB(0);
-                if (USE_DOF) {
-                    double scale = DOF_FOCAL_PLANE / ray.getDirection().z;
-                    Vector3 focal_plane_point = new Vector3(
-                            ray.getDirection().x * scale,
-                            ray.getDirection().y * scale,
-                            DOF_FOCAL_PLANE
-                    );
-                    for (int i = 0; i < DOF_RAY_COUNT; i++) {
-                        Vector3 from = ray.getOrigin().add(new Vector3(
-                                -DOF_AMOUNT / 2 + DOF_AMOUNT * Math.random(),
-                                -DOF_AMOUNT / 2 + DOF_AMOUNT * Math.random(),
-                                0));
-                        Vector3 direction = focal_plane_point.subtract(from).normalised();
-                        Ray DOF_ray = new Ray(from, direction);
-                        ColorRGB linearRGB = trace(scene, DOF_ray, bounces); // Trace path of cast ray and determine colour
-                        ColorRGB gammaRGB = tonemap(linearRGB);
-                        sum = sum.add(gammaRGB);
-                    }
-                    sum = sum.scale(1.0 / DOF_RAY_COUNT);
-                } else {
-                    ColorRGB linearRGB = trace(scene, ray, bounces); // Trace path of cast ray and determine colour
-                    ColorRGB gammaRGB = tonemap(linearRGB);
-                    sum = sum.add(gammaRGB);
-                }
-                image.setRGB(x, y, sum.toRGB()); // Set image colour to traced colour
+                image.setRGB(x, y, renderPixel(scene, camera, x, y, tracer, sampler)); // Set image colour to traced colour
             }
             // Display progress every 10 lines
             if (y % 4 == 3 | y == (height - 1))
@@ -212,6 +297,277 @@ public class Renderer {
         return image;
     }
 
+    /*
+     * Render the image split into tiles on a work-stealing pool of the configured number of threads.
+     * Every pixel is computed exactly as in the sequential path, so the result is identical when sampling
+     * is deterministic.
+     */
+    private BufferedImage renderParallel(Scene scene) {
+        Camera camera = new Camera(width, height);
+        int[] framebuffer = new int[width * height];
+
+        renderTiles(scene, (x, y, tracer, sampler) ->
+                framebuffer[y * width + x] = renderPixel(scene, camera, x, y, tracer, sampler), true);
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, width, height, framebuffer, 0, width);
+        return image;
+    }
+
+    // Work done for one pixel of a tiled render, given the tracer (if enabled) and sampler of its tile
+    interface PixelTask {
+        void render(int x, int y, PrimitiveTracer tracer, Sampler sampler);
+
+        // Called before the pixels of a tile are rendered, returning false skips the tile
+        default boolean startTile(int tile) {
+            return true;
+        }
+
+        // Called after a started tile, completed being false if rendering one of its pixels failed
+        default void finishTile(int tile, boolean completed) {
+        }
+    }
+
+    // Number of tiles the image is split into by renderTiles, numbered in row-major order
+    int getTileCount() {
+        return ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+    }
+
+    // Run the task for every pixel, split into tiles on a work-stealing pool of the configured number of threads
+    void renderTiles(Scene scene, PixelTask task, boolean showProgress) {
+        // Build the acceleration structure up front rather than on whichever worker gets there first
+        scene.buildAccelerationStructure();
+
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        TileJob job = new TileJob(task, tilesX, tilesX * tilesY, showProgress);
+
+        getPool().invoke(new TileTask(job, 0, job.tileCount));
+    }
+
+    // Progressive renders run a tiled render per pass, so the pool is reused rather than started every time
+    private synchronized ForkJoinPool getPool() {
+        if (pool == null || pool.getParallelism() != threads) {
+            // Idle workers are daemon threads that exit on their own, so a replaced pool only needs shutting down
+            if (pool != null) pool.shutdown();
+            pool = new ForkJoinPool(threads);
+        }
+        return pool;
+    }
+
+    // State shared by all tiles of one parallel render
+    private static class TileJob {
+        final PixelTask task;
+        final int tilesX, tileCount;
+        final boolean showProgress;
+        final AtomicInteger tilesDone = new AtomicInteger();
+
+        TileJob(PixelTask task, int tilesX, int tileCount, boolean showProgress) {
+            this.task = task;
+            this.tilesX = tilesX;
+            this.tileCount = tileCount;
+            this.showProgress = showProgress;
+        }
+    }
+
+    // Renders the tiles [first, last), splitting the range in half until a single tile is left
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final TileJob job;
+        private final int first, last;
+
+        TileTask(TileJob job, int first, int last) {
+            this.job = job;
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if (last - first > 1) {
+                int mid = (first + last) >>> 1;
+                invokeAll(new TileTask(job, first, mid), new TileTask(job, mid, last));
+                return;
+            }
+            if (!job.task.startTile(first)) {
+                return;
+            }
+            int x0 = (first % job.tilesX) * TILE_SIZE;
+            int y0 = (first / job.tilesX) * TILE_SIZE;
+            Sampler sampler = new Sampler(seed, samplePattern);
+            PrimitiveTracer tracer = primitiveKernel ? new PrimitiveTracer(Renderer.this, sampler) : null;
+            boolean completed = false;
+            try {
+                for (int y = y0; y < Math.min(y0 + TILE_SIZE, height); ++y) {
+                    for (int x = x0; x < Math.min(x0 + TILE_SIZE, width); ++x) {
+                        job.task.render(x, y, tracer, sampler);
+                    }
+                }
+                completed = true;
+            } finally {
+                job.task.finishTile(first, completed);
+            }
+            if (!job.showProgress) {
+                return;
+            }
+
+            // Display progress roughly every 5%
+            int done = job.tilesDone.incrementAndGet();
+            if (done * 20 / job.tileCount != (done - 1) * 20 / job.tileCount)
+                System.out.println(String.format("%.2f", 100 * done / (float) job.tileCount) + "% completed");
+        }
+    }
+
+    /*
+     * Trace the ray(s) through pixel (x, y) and return its tone mapped RGB value, using tracer if one is given.
+     * The sampler is restarted for the pixel, so its random numbers are the same whichever thread renders it,
+     * and it must be the one the tracer was created with.
+     */
+    int renderPixel(Scene scene, Camera camera, int x, int y, PrimitiveTracer tracer, Sampler sampler) {
+        sampler.startPixel(x, y);
+        if (maxSamples > 1) {
+            return renderPixelAdaptive(scene, camera, x, y, tracer, sampler);
+        }
+        samplesTaken.increment();
+        Ray ray = camera.castRay(x, y); // Cast ray through pixel
+        if (tracer != null) {
+            tracer.renderSample(scene, ray);
+            return tracer.toRGB();
+        }
+        return renderSample(scene, ray, sampler).toRGB();
+    }
+
+    /*
+     * Average samples spread over pixel (x, y) until the standard error of their luminance is below the
+     * threshold. The first sample is through the centre of the pixel and the rest are jittered across it, so
+     * flat regions stop after minSamples while edges and noisy shading receive up to maxSamples.
+     */
+    private int renderPixelAdaptive(Scene scene, Camera camera, int x, int y, PrimitiveTracer tracer,
+                                    Sampler sampler) {
+        double sumR = 0, sumG = 0, sumB = 0;
+        // Running mean and sum of squared deviations of the luminance (Welford's algorithm)
+        double mean = 0, m2 = 0;
+        int n = 0;
+        long jitterSet = sampler.startSet();
+        while (true) {
+            Ray ray = n == 0 ? camera.castRay(x, y) : camera.castRay(x, y,
+                    sampler.sample(jitterSet, n, maxSamples, 0), sampler.sample(jitterSet, n, maxSamples, 1));
+            double r, g, b;
+            if (tracer != null) {
+                tracer.renderSample(scene, ray);
+                double[] colour = tracer.getColour();
+                r = colour[0];
+                g = colour[1];
+                b = colour[2];
+            } else {
+                ColorRGB colour = renderSample(scene, ray, sampler);
+                r = colour.r;
+                g = colour.g;
+                b = colour.b;
+            }
+            sumR += r;
+            sumG += g;
+            sumB += b;
+            n++;
+
+            double luminance = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+            double delta = luminance - mean;
+            mean += delta / n;
+            m2 += delta * (luminance - mean);
+            if (n >= maxSamples) break;
+            if (n >= minSamples && m2 / (n - 1) / n <= sampleErrorThreshold * sampleErrorThreshold) break;
+        }
+        samplesTaken.add(n);
+        return new ColorRGB(sumR / n, sumG / n, sumB / n).toRGB();
+    }
+
+    /*
+     * Add pass number pass of pixel (x, y) to the sums of a progressive render: its linear colour to accumulation
+     * and its squared luminance to luminanceSquares. Pass 0 is through the centre of the pixel, the others are
+     * spread over it and over the lens according to the sample pattern, with one ray per pass. Passes beyond
+     * passCount start another set of passCount points, scrambled differently.
+     */
+    void accumulatePass(Scene scene, Camera camera, int x, int y, int pass, int passCount, PrimitiveTracer tracer,
+                        Sampler sampler, float[] accumulation, float[] luminanceSquares) {
+        // The sets are keyed before the pass is selected so that their points are spread across all passes
+        sampler.startPixel(x, y);
+        long pixelSet = sampler.startSet();
+        long lensSet = sampler.startSet();
+        sampler.startPixel(x, y, pass);
+        int patternIndex = pass % passCount;
+        pixelSet += Sampler.DIMENSIONS * (long) (pass / passCount);
+        lensSet += Sampler.DIMENSIONS * (long) (pass / passCount);
+
+        Ray ray = pass == 0 ? camera.castRay(x, y) : camera.castRay(x, y,
+                sampler.sample(pixelSet, patternIndex, passCount, 0),
+                sampler.sample(pixelSet, patternIndex, passCount, 1));
+        if (USE_DOF) {
+            double scale = DOF_FOCAL_PLANE / ray.getDirection().z;
+            Vector3 focal_plane_point = new Vector3(
+                    ray.getDirection().x * scale,
+                    ray.getDirection().y * scale,
+                    DOF_FOCAL_PLANE
+            );
+            Vector3 from = ray.getOrigin().add(new Vector3(
+                    -DOF_AMOUNT / 2 + DOF_AMOUNT * sampler.sample(lensSet, patternIndex, passCount, 0),
+                    -DOF_AMOUNT / 2 + DOF_AMOUNT * sampler.sample(lensSet, patternIndex, passCount, 1),
+                    0));
+            ray = new Ray(from, focal_plane_point.subtract(from).normalised(), 0, ray.getSpread());
+        }
+
+        double r, g, b;
+        if (tracer != null) {
+            tracer.trace(scene, ray, bounces);
+            double[] colour = tracer.getColour();
+            r = colour[0];
+            g = colour[1];
+            b = colour[2];
+        } else {
+            ColorRGB colour = trace(scene, ray, bounces, sampler);
+            r = colour.r;
+            g = colour.g;
+            b = colour.b;
+        }
+        int index = y * width + x;
+        accumulation[3 * index] += r;
+        accumulation[3 * index + 1] += g;
+        accumulation[3 * index + 2] += b;
+        double luminance = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+        luminanceSquares[index] += luminance * luminance;
+    }
+
+    // Tone mapped colour of one camera ray, averaged over the depth-of-field rays if enabled
+    private ColorRGB renderSample(Scene scene, Ray ray, Sampler sampler) {
+        ColorRGB sum = new ColorRGB(0);
+        if (USE_DOF) {
+            double scale = DOF_FOCAL_PLANE / ray.getDirection().z;
+            Vector3 focal_plane_point = new Vector3(
+                    ray.getDirection().x * scale,
+                    ray.getDirection().y * scale,
+                    DOF_FOCAL_PLANE
+            );
+            long lensSet = sampler.startSet();
+            for (int i = 0; i < DOF_RAY_COUNT; i++) {
+                Vector3 from = ray.getOrigin().add(new Vector3(
+                        -DOF_AMOUNT / 2 + DOF_AMOUNT * sampler.sample(lensSet, i, DOF_RAY_COUNT, 0),
+                        -DOF_AMOUNT / 2 + DOF_AMOUNT * sampler.sample(lensSet, i, DOF_RAY_COUNT, 1),
+                        0));
+                Vector3 direction = focal_plane_point.subtract(from).normalised();
+                Ray DOF_ray = new Ray(from, direction, 0, ray.getSpread());
+                ColorRGB linearRGB = trace(scene, DOF_ray, bounces, sampler); // Trace path of cast ray and determine colour
+                ColorRGB gammaRGB = tonemap(linearRGB);
+                sum = sum.add(gammaRGB);
+            }
+            sum = sum.scale(1.0 / DOF_RAY_COUNT);
+        } else {
+            ColorRGB linearRGB = trace(scene, ray, bounces, sampler); // Trace path of cast ray and determine colour
+            ColorRGB gammaRGB = tonemap(linearRGB);
+            sum = sum.add(gammaRGB);
+        }
+        return sum;
+    }
+
 
     // Combined tone mapping and display encoding
     public ColorRGB tonemap(ColorRGB linearRGB) {
@@ -0,0 +1,222 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+/*
+ * Counter-based source of uniform random numbers for sampling. Every value is a hash of the seed, the
+ * pixel being rendered and the number of values drawn for it so far, so the samples of a pixel do not depend
+ * on which thread renders it or in what order. Unlike Math.random() there is no shared state; a sampler must
+ * only be used by one thread at a time.
+ *
+ * Sets of points, such as the shadow rays towards one light or the lens positions of one pixel, are drawn
+ * with startSet and sample according to the sampler's pattern. Better spread patterns reach the noise level
+ * of independent random points with fewer rays.
+ */
+public class Sampler {
+
+    public enum Pattern {
+        RANDOM,      // Independent uniform points
+        STRATIFIED,  // Jittered Latin hypercube, one point in every 1/count slab of each dimension
+        HALTON,      // Halton sequence in bases 2, 3 and 5 with a random toroidal shift per set
+        SOBOL,       // Sobol sequence with a random digital shift per set
+        BLUE_NOISE   // Additive recurrence offset by interleaved gradient noise, so error is blue across pixels
+    }
+
+    // Increment of the SplitMix64 generator
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    // Number of dimensions with a structured pattern, further dimensions are independent random values
+    static final int DIMENSIONS = 3;
+
+    private static final int[] HALTON_BASES = {2, 3, 5};
+
+    // Generator of the R3 recurrence (Roberts), the real root of x^4 = x + 1
+    private static final double R3_PHI = 1.2207440846057596;
+    private static final double[] R3_ALPHA = {1 / R3_PHI, 1 / (R3_PHI * R3_PHI), 1 / (R3_PHI * R3_PHI * R3_PHI)};
+
+    // Sobol direction numbers of the first three dimensions, for primitive polynomials 1, x + 1 and x^2 + x + 1
+    private static final int[][] SOBOL_DIRECTIONS = new int[DIMENSIONS][32];
+
+    static {
+        for (int k = 0; k < 32; k++) {
+            SOBOL_DIRECTIONS[0][k] = 1 << (31 - k);
+        }
+        SOBOL_DIRECTIONS[1][0] = 1 << 31;
+        for (int k = 1; k < 32; k++) {
+            int v = SOBOL_DIRECTIONS[1][k - 1];
+            SOBOL_DIRECTIONS[1][k] = v ^ (v >>> 1);
+        }
+        SOBOL_DIRECTIONS[2][0] = 1 << 31;
+        SOBOL_DIRECTIONS[2][1] = 3 << 30;
+        for (int k = 2; k < 32; k++) {
+            int v = SOBOL_DIRECTIONS[2][k - 2];
+            SOBOL_DIRECTIONS[2][k] = SOBOL_DIRECTIONS[2][k - 1] ^ v ^ (v >>> 2);
+        }
+    }
+
+    private final long seed;
+    private final Pattern pattern;
+
+    // Counter hashed to produce the next value
+    private long state;
+
+    // Pixel being sampled and the number of sets started in it
+    private int pixelX, pixelY;
+    private long setCount;
+
+    public Sampler(long seed) {
+        this(seed, Pattern.RANDOM);
+    }
+
+    public Sampler(long seed, Pattern pattern) {
+        this.seed = seed;
+        this.pattern = pattern;
+        this.state = mix(seed);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    // Restart the sequence at the first value of pixel (x, y)
+    public void startPixel(int x, int y) {
+        state = mix(seed ^ mix(((long) y << 32) | (x & 0xffffffffL)));
+        pixelX = x;
+        pixelY = y;
+        setCount = 0;
+    }
+
+    // Restart the sequence for pass pass of pixel (x, y) in progressive rendering, pass 0 being startPixel(x, y)
+    public void startPixel(int x, int y, int pass) {
+        startPixel(x, y);
+        if (pass != 0) {
+            state = mix(state ^ mix(pass));
+            // Long so that passes past 32767 do not wrap the key into those of earlier passes
+            setCount = (long) pass << 16;
+        }
+    }
+
+    // Uniformly distributed in [0, 1)
+    public double nextDouble() {
+        state += GOLDEN_GAMMA;
+        return (mix(state) >>> 11) * 0x1.0p-53;
+    }
+
+    /*
+     * Start a new set of points, returning the key that identifies it to sample. Keys only depend on the
+     * pixel and the order sets are started in, so nested sets (e.g. shadow rays inside a supersample) are fine.
+     */
+    public long startSet() {
+        setCount++;
+        switch (pattern) {
+            case RANDOM:
+                return 0;
+            case BLUE_NOISE:
+                return setCount;
+            default:
+                state += GOLDEN_GAMMA;
+                return mix(state);
+        }
+    }
+
+    /*
+     * Coordinate dimension in [0, 1) of point index of a set of count points. With the RANDOM pattern every
+     * call draws a new value, so coordinates must be requested in a fixed order.
+     */
+    public double sample(long set, int index, int count, int dimension) {
+        if (pattern == Pattern.RANDOM || dimension >= DIMENSIONS) {
+            return nextDouble();
+        }
+        switch (pattern) {
+            case STRATIFIED: {
+                long key = mix(set + dimension);
+                int stratum = permute(index, count, (int) key);
+                return (stratum + toDouble(mix(key ^ index))) / count;
+            }
+            case HALTON:
+                return fraction(radicalInverse(HALTON_BASES[dimension], index) + toDouble(mix(set + dimension)));
+            case SOBOL: {
+                int bits = 0;
+                for (int k = 0, i = index; i != 0; k++, i >>>= 1) {
+                    if ((i & 1) != 0) bits ^= SOBOL_DIRECTIONS[dimension][k];
+                }
+                bits ^= (int) mix(set + dimension);
+                return (bits & 0xffffffffL) * 0x1.0p-32;
+            }
+            default: {
+                // Sets of a pixel are spread along the golden ratio, pixels by interleaved gradient noise
+                double offset = interleavedGradientNoise(pixelX, pixelY) + 0.6180339887498949 * set;
+                return fraction(offset + R3_ALPHA[dimension] * (index + 1));
+            }
+        }
+    }
+
+    // Finalising mix of SplitMix64 (Steele, Lea & Flood), a bijection with good avalanche
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    private static double toDouble(long bits) {
+        return (bits >>> 11) * 0x1.0p-53;
+    }
+
+    private static double fraction(double x) {
+        return x - Math.floor(x);
+    }
+
+    private static double radicalInverse(int base, int index) {
+        double inverseBase = 1.0 / base, scale = inverseBase, result = 0;
+        for (int i = index; i > 0; i /= base) {
+            result += (i % base) * scale;
+            scale *= inverseBase;
+        }
+        return result;
+    }
+
+    // Screen-space noise of Jimenez et al., consecutive pixels differ by roughly the golden ratio
+    private static double interleavedGradientNoise(int x, int y) {
+        return fraction(52.9829189 * fraction(0.06711056 * x + 0.00583715 * y));
+    }
+
+    // Element i of a random permutation of [0, l) chosen by p, without storing it (Kensler, 2013)
+    static int permute(int i, int l, int p) {
+        int w = l - 1;
+        w |= w >>> 1;
+        w |= w >>> 2;
+        w |= w >>> 4;
+        w |= w >>> 8;
+        w |= w >>> 16;
+        do {
+            i ^= p;
+            i *= 0xe170893d;
+            i ^= p >>> 16;
+            i ^= (i & w) >>> 4;
+            i ^= p >>> 8;
+            i *= 0x0929eb3f;
+            i ^= p >>> 23;
+            i ^= (i & w) >>> 1;
+            i *= 1 | p >>> 27;
+            i *= 0x6935fa69;
+            i ^= (i & w) >>> 11;
+            i *= 0x74dcb303;
+            i ^= (i & w) >>> 2;
+            i *= 0x9e501cc3;
+            i ^= (i & w) >>> 2;
+            i *= 0xc860a3df;
+            i &= w;
+            i ^= i >>> 5;
+        } while (i >= l);
+        return Math.floorMod(i + p, l);
+    }
+
+    // Seed determined by a position, for randomness that is fixed by the geometry of a scene
+    public static long seedOf(Vector3 position) {
+        long h = mix(Double.doubleToLongBits(position.x));
+        h = mix(h ^ Double.doubleToLongBits(position.y));
+        return mix(h ^ Double.doubleToLongBits(position.z));
+    }
+}
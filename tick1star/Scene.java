@@ -4,10 +4,14 @@ import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Scene {
     public final static ColorRGB white = new ColorRGB(1);
@@ -28,6 +32,12 @@ public class Scene {
     // The color of the ambient light in the scene
     private ColorRGB ambientLight;
 
+    // Bounding volume hierarchy over the bounded objects, built lazily on the first query
+    private volatile BVH bvh;
+
+    // Objects without finite bounds (e.g. planes), tested against every ray
+    private SceneObject[] unboundedObjects;
+
     public Scene() {
         objects = new LinkedList<SceneObject>();
         pointLights = new LinkedList<PointLight>();
@@ -36,10 +46,104 @@ public class Scene {
 
     public void addObject(SceneObject object) {
         objects.add(object);
+        bvh = null;
+    }
+
+    /*
+     * Build the bounding volume hierarchy over the bounded objects. Called automatically by the first query,
+     * objects must not be moved after that without adding a new object to the scene.
+     */
+    public synchronized BVH buildAccelerationStructure() {
+        return buildAccelerationStructure(BVH.Strategy.SAH);
+    }
+
+    public synchronized BVH buildAccelerationStructure(BVH.Strategy strategy) {
+        if (bvh == null || bvh.getStrategy() != strategy) {
+            List<SceneObject> bounded = new ArrayList<>();
+            List<SceneObject> unbounded = new ArrayList<>();
+            for (SceneObject object : objects) {
+                if (object.getBounds() != null) bounded.add(object);
+                else unbounded.add(object);
+            }
+            unboundedObjects = unbounded.toArray(new SceneObject[0]);
+            bvh = new BVH(bounded, strategy, ForkJoinPool.commonPool());
+        }
+        return bvh;
     }
 
     // Find the closest intersection of given ray with an object in the scene
     public RaycastHit findClosestIntersection(Ray ray) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        double[] hit = new double[2];
+        SceneObject object = findClosestObject(O.x, O.y, O.z, D.x, D.y, D.z, hit, new BVH.TraversalStack());
+
+        // The hit record is built for the closest object alone
+        if (object == null || hit[1] == Double.POSITIVE_INFINITY) {
+            return new RaycastHit();
+        }
+        return object.createHit(ray, hit[1]);
+    }
+
+    /*
+     * Closest object hit by the ray from (ox, oy, oz) along (dx, dy, dz), or null if there is none. Leaves the
+     * ray parameter of the hit in hit[1], using hit[0] for the distance searched so far, and the traversal in
+     * stack, so that a caller reusing both allocates nothing per ray.
+     */
+    public SceneObject findClosestObject(double ox, double oy, double oz, double dx, double dy, double dz,
+                                         double[] hit, BVH.TraversalStack stack) {
+        BVH hierarchy = bvh;
+        if (hierarchy == null) hierarchy = buildAccelerationStructure();
+
+        // Only distances are compared during the search
+        double magnitude = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        hit[0] = Double.POSITIVE_INFINITY;
+        SceneObject closestObject = null;
+        double closestS = 0;
+
+        // Loop over unbounded objects, then let the hierarchy find anything closer
+        for (SceneObject object : unboundedObjects) {
+            double s = object.intersect(ox, oy, oz, dx, dy, dz);
+            if (s * magnitude < hit[0]) {
+                hit[0] = s * magnitude;
+                closestObject = object;
+                closestS = s;
+            }
+        }
+
+        SceneObject hierarchyObject = hierarchy.findClosestObject(ox, oy, oz, dx, dy, dz, hit, stack);
+        if (hierarchyObject != null) {
+            // Found by distance alone, possibly by the batched sphere kernel, so the object computes its own
+            hit[1] = hierarchyObject.intersect(ox, oy, oz, dx, dy, dz);
+            return hierarchyObject;
+        }
+        hit[1] = closestS;
+        return closestObject;
+    }
+
+    /*
+     * Whether anything blocks the segment of length maxDistance from origin along direction. Used for shadow
+     * rays: stops at the first blocker found and never computes hit locations or normals.
+     */
+    public boolean isOccluded(Vector3 origin, Vector3 direction, double maxDistance) {
+        return isOccluded(origin.x, origin.y, origin.z, direction.x, direction.y, direction.z, maxDistance,
+                new BVH.TraversalStack());
+    }
+
+    // As above for the segment from (ox, oy, oz) along (dx, dy, dz), keeping the traversal in stack
+    public boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+                              double maxDistance, BVH.TraversalStack stack) {
+        BVH hierarchy = bvh;
+        if (hierarchy == null) hierarchy = buildAccelerationStructure();
+
+        for (SceneObject object : unboundedObjects) {
+            if (object.occludes(ox, oy, oz, dx, dy, dz, maxDistance)) return true;
+        }
+        return hierarchy.isOccluded(ox, oy, oz, dx, dy, dz, maxDistance, stack);
+    }
+
+    // Reference implementation testing every object, used to validate the hierarchy
+    public RaycastHit findClosestIntersectionLinear(Ray ray) {
         RaycastHit closestHit = new RaycastHit(); // initially no intersection
 
         // Loop over objects and find closest intersection
@@ -52,6 +156,10 @@ public class Scene {
         return closestHit;
     }
 
+    public List<SceneObject> getObjects() {
+        return objects;
+    }
+
     public ColorRGB getAmbientLighting() {
         return ambientLight;
     }
@@ -73,17 +181,34 @@ public class Scene {
     }
 
     public String toXML() {
-        String result = "\n";
-        result += "<scene>\n";
-        result += "<ambient-light colour=\"#FFFFFF\" intensity=\"0.05\"/>\n";
+        StringWriter result = new StringWriter();
+        try {
+            writeXML(result);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return result.toString();
+    }
+
+    /*
+     * Write the scene as XML one element at a time, so that large scenes can be exported in linear time without
+     * holding the document in memory. The writer is flushed but not closed.
+     */
+    public void writeXML(Writer writer) throws IOException {
+        writer.write("\n");
+        writer.write("<scene>\n");
+        // Grey ambient light is written exactly, as white at an intensity
+        boolean grey = ambientLight.r == ambientLight.g && ambientLight.g == ambientLight.b;
+        writer.write(String.format("<ambient-light colour=\"%s\" intensity=\"%s\"/>\n",
+                grey ? "#ffffff" : ambientLight.toHex(), grey ? ambientLight.r : 1.0));
         for (PointLight pointLight : pointLights) {
-            result += pointLight.toXML();
+            writer.write(pointLight.toXML());
         }
         for (SceneObject sceneObject : objects) {
-            result += sceneObject.toXML();
+            writer.write(sceneObject.toXML());
         }
-        result += "</scene>\n";
-        return result;
+        writer.write("</scene>\n");
+        writer.flush();
     }
 
     public static ArrayList<Sphere> fractal2(Vector3 v, double size, double r, double dist, double d_size, int iterationCount) {
@@ -95,7 +220,7 @@ public class Scene {
         result.add(sphere);
 
         double n = 6;
-        double randomAngle = Math.random() * Math.PI * 2;
+        double randomAngle = new Sampler(Sampler.seedOf(v)).nextDouble() * Math.PI * 2;
         for (int i = 0; i < n; i++) {
             double angle = 2 * Math.PI * i / n + randomAngle;
             result.addAll(fractal2(
@@ -133,19 +258,14 @@ public class Scene {
         }
         for (Plane plane : planes) scene.addObject(plane);
         for (Sphere sphere : spheres) scene.addObject(sphere);
-        /*ColorRGB[][] earth = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
+        /*Texture earth = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
         for (Sphere sphere : spheres) {
             TexturedSphere temp = new TexturedSphere(sphere.position, sphere.radius, sphere.colour, earth, "2k_mars.png");
             temp.rotateRandomly();
             scene.addObject(temp);
         }
 
-        ColorRGB[][] sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
-        for (int i = 0; i < sun.length; i++) {
-            for (int j = 0; j < sun[i].length; j++) {
-                sun[i][j] = sun[i][j];
-            }
-        }
+        Texture sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
         TexturedSphere bigSun = new TexturedSphere(new Vector3(0.7, 0.3, 0.75), 0.58, white, sun, "2k_sun.png");
         scene.addObject(bigSun);*/
 
@@ -154,12 +274,7 @@ public class Scene {
         //scene.addPointLight(new PointLight(new Vector3(2, 2, 5), new ColorRGB(1, 0.8, 0.5), 40));
         scene.addPointLight(new PointLight(new Vector3(0, 0, 0), new ColorRGB(0, 1, 0.5), 200));
 
-        /*ColorRGB[][] stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png");
-        for (int i = 0; i < stars.length; i++) {
-            for (int j = 0; j < stars[i].length; j++) {
-                stars[i][j] = stars[i][j].scale(10);
-            }
-        }
+        /*Texture stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png").scaled(10);
         InsideOutSphere background = new InsideOutSphere(new Vector3(0, 0, 800), 1000, white, stars, "2k_stars_milky_way.png");
         scene.addObject(background);*/
 
@@ -242,14 +357,10 @@ public class Scene {
 
         for (int iteration = 0; iteration < 3; iteration++) {
             ColorRGB colour = cols[iteration + 1];
-            newSpheres = new ArrayList<>();
-            for (Sphere sphere : spheres) {
-                for (Sphere base : bases) {
-                    Sphere inverted = sphere.invert(base);
-                    inverted.colour = colour;
-                    inverted.colorName = colNames[iteration + 1];
-                    newSpheres.add(inverted);
-                }
+            newSpheres = SceneBuilder.invertAll(spheres, bases);
+            for (Sphere inverted : newSpheres) {
+                inverted.colour = colour;
+                inverted.colorName = colNames[iteration + 1];
             }
             spheres.addAll(newSpheres);
 
@@ -264,20 +375,7 @@ public class Scene {
         }
         spheres.addAll(allInverted);
 
-        newSpheres = new ArrayList<>();
-        for (Sphere sphere : spheres) {
-            boolean unique = true;
-            for (Sphere newSphere : newSpheres) {
-                if (sphere.position.subtract(newSphere.position).magnitude() < 0.001 && Math.abs(sphere.radius - newSphere.radius) < 0.001) {
-                    unique = false;
-                    break;
-                }
-            }
-            if (unique) {
-                newSpheres.add(sphere);
-            }
-        }
-        spheres = newSpheres;
+        spheres = SceneBuilder.deduplicate(spheres);
 
         Sphere remove = new Sphere(new Vector3(1, 5 + 1000, -2), 4, white);
 
@@ -329,15 +427,6 @@ public class Scene {
             if (sphere.position.subtract(remove.position).magnitude() < sphere.radius + remove.radius) {
                 okay = false;
             }
-
-
-            int val = Renderer.hashPos(sphere.position);
-            int[] visible = new int[]{-1295128372, -889574151, 1480989250, 242770558, 1786696823, 1564095283, -31833065, 1203711921, 2114726430, -1778953244, -40519807, -749618876, 106839624, 1228033316, 961439060, 19823413, -1683864642, 848419505, -921045189, -374010985, -998394279, -315612394, -18370880, 868861921, -2121170503, -1353312901, -1439927293, 1780120106, 129606541, -700669430, 648044700, 170053148, -973752395, -839685194, -1062414615, -1245326961, -305424000, 412264156, 142983883, 1359679321, -75315754, -1056416431, -1831591281, 1077783649, -815907581, -1072312757, -965814270, -348598442, 1175152229, 1811666827, -962653459, 1687456999, -969651646, -1650354213, 1361939287, -2119989470, -1537348904, -174819044, -1589795916, -95649595, -18815893, -1414590176, 92180977, 268746902, 1207026019, -61667130, 1046089410, -193041180, -1550591729, -381704293, -1735561175, 1952497355, 1776811351, -1039857484, -1547211920, 1715490042, 46882929, -668487524, 1667112857, 638841050, 467731752, -526562218, -1265723839, 307935371, 560379319, 1060037626, 1391117887, 1071566600, -355751396, -1808941325, 530335610, 1253584466, 1231026101, -1891430481, -497469272, -1778422516, -1050745942, 992131028, 1400061832, -969734857, 333989615, -639333647, 583609310, -1310363918, 452297708, -323682899, 33672991, 521226767, 1634888812, -275610484, -179861416, -2110713067, -2108749461, 1321600994, -2094440445, 42096044, -529385636, 1336193684, -2058143646, 1781388057, -375416661, 729611847, -814607793, 481669621, 1932393582, 554091584, 1221649815, -989901384, 308797230, 1364466206, 883644385, -945826092, -1129464324, 489302649, 649143268, -1486443984, 1523377556, 1271656083, -1814524282, -986921393, -1037931193, 423445082, 446204403, 1463629395, -1561942634, -1237721266, -788258182, -444751870, -418247020, -2082950064, 1362688177, -426579172, -861358809, 1392752785, -1095037655, 318003555, 1744392806, -1646315910, -621002407, 1035066388, 1615707114, 357749493, 130588257, 671492524, -62494210, 1593148749, 1344751517, 1323021671, 471132073, -1537066532, 1411061208, -1516760995, 194218587, 285138738, -1359316181, 1931461321, 979383735, 1336506992, -973270, 748360000, -771832289, -824400579, 966430329, -678536600, 1707793964, -315166499, -70099905, 2118284204, -1127959755, -1315070356, -1147530129, -1996466954, 178622813, -175237513, 1250887028, -245406556, -1289887514, -1731266253, 501251102};
-            boolean existsInVisible = false;
-            for (int i : visible) {
-                if (val == i) existsInVisible = true;
-            }
-            if (!existsInVisible) okay = false;
             if (okay) {
                 newSpheres.add(sphere);
             }
@@ -372,19 +461,14 @@ public class Scene {
             //sphere.position = Vector3.rotateVector(sphere.position, new Vector3(0, 0, 1), -0.1);
             sphere.position = sphere.position.add(new Vector3(-1.3, -0.5, 15));
         }
-        ColorRGB[][] earth = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
+        Texture earth = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
         for (Sphere sphere : spheres) {
             TexturedSphere temp = new TexturedSphere(sphere.position, sphere.radius, sphere.colour, earth, "2k_mars.png");
             temp.rotateRandomly();
             scene.addObject(temp);
         }
 
-        ColorRGB[][] sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
-        for (int i = 0; i < sun.length; i++) {
-            for (int j = 0; j < sun[i].length; j++) {
-                sun[i][j] = sun[i][j];
-            }
-        }
+        Texture sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
         TexturedSphere bigSun = new TexturedSphere(new Vector3(0.7, 0.3, 0.75), 0.58, white, sun, "2k_sun.png");
         scene.addObject(bigSun);
 
@@ -392,12 +476,7 @@ public class Scene {
         scene.addPointLight(new PointLight(new Vector3(0, 0, 0), new ColorRGB(1, 0.7, 0.7), 20));
         scene.addPointLight(new PointLight(new Vector3(2, 2, 5), new ColorRGB(1, 0.8, 0.5), 40));
 
-        ColorRGB[][] stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png");
-        for (int i = 0; i < stars.length; i++) {
-            for (int j = 0; j < stars[i].length; j++) {
-                stars[i][j] = stars[i][j].scale(10);
-            }
-        }
+        Texture stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png").scaled(10);
         InsideOutSphere background = new InsideOutSphere(new Vector3(0, 0, 800), 1000, white, stars, "2k_stars_milky_way.png");
         scene.addObject(background);
 
@@ -443,11 +522,9 @@ public class Scene {
 
         ArrayList<Sphere> spheres = new ArrayList<>(iterations[0]);
         for (int iteration = 1; iteration <= maxIterations; iteration++) {
-            iterations[iteration] = new ArrayList<>();
-            for (Sphere sphere : spheres) {
-                for (Sphere base : bases) {
-                    iterations[iteration].add(sphere.invert(base).setLabel(iteration));
-                }
+            iterations[iteration] = SceneBuilder.invertAll(spheres, bases);
+            for (Sphere inverted : iterations[iteration]) {
+                inverted.setLabel(iteration);
             }
             spheres.addAll(iterations[iteration]);
 
@@ -460,18 +537,8 @@ public class Scene {
         }
         spheres.addAll(allInverted);
 
-        ArrayList<Sphere> newSpheres = new ArrayList<>();
-        for (Sphere sphere : spheres) {
-            boolean unique = true;
-            for (Sphere newSphere : newSpheres) {
-                if (sphere.position.subtract(newSphere.position).magnitude() < 0.001 &&
-                        Math.abs(sphere.radius - newSphere.radius) < 0.001) {
-                    unique = false;
-                }
-            }
-            if (unique) newSpheres.add(sphere);
-        }
-        spheres = newSpheres;
+        spheres = SceneBuilder.deduplicate(spheres);
+        ArrayList<Sphere> newSpheres;
 
         newSpheres = new ArrayList<>();
         for (Sphere sphere : spheres) {
@@ -499,39 +566,26 @@ public class Scene {
             if (sphere.position.magnitude() < sphere.radius) okay = false;
             if (sphere.position.subtract(remove.position).magnitude() < sphere.radius + remove.radius) okay = false;
             //if (sphere.position.z > 9.1) okay = false;
-            int[] justVisible = new int[]{-278600875, -808391239, 420797800, 77070566, 1789875790, -572257562, -1881751354, 1109833632, 640763280, -284334934, -1507098224, 576854948, 2144973362};
-            int val = Renderer.hashPos(sphere.position);
-            for (int i : justVisible) {
-                if (i == val) okay = false;
-            }
-
-            int[] visible = new int[]{597335448, 2143700931, -1652393083, -475534417, -989260030, 1564346152, 26804608, 1093479222, -816093376, -636318708, -1747360258, -2063626033, -1633757013, -355191583, 224472921, -485471958, -1267774383, 1225158983, -102569565, 1029173013, 1346453511, -1849896971, -1366257956, -2004657969, -1365242127, 1062381316, 919728777, 1017854707, -870307716, -175638053, 2051578389, -1986405383, -290855733, 423570263, -1195597611, 1620679927, -289849641, 1399137560, 1493620100, 477000424, 2117382845, -1749759171, -1456384581, 1718545634, 164298054, 699928885, 1037941074, 1982882465, 1818795259, 881634838, 1518813734, 1081534165, 209244380, 134488236, 1640719714, -1156513859, 2060675168, -1709410135, 2018598116, 786835035, 66305356, -2147256638, -1697335787, -1834554268, 2147066685, -1047945906, -643732630, 789772766, 769762093, -1384633417, -1250578523, -220031440, 419939285, -1297709456, -1789579901, 1408830753, -244678222, -1679162061, -2043207954, -385184810, -1471491436, 1088141374, 1159822281, 981668459, 891231728, 123124, 890058230, 1185616809, 692376641, -724874785, -1757330859, 790097922, 568524539, 1952864122, -268052200, -1143682314, 24476247, 2004141661, 891828737, 132296904, -489149454, 892209664, 1708283132, 1212659575, 122162810, -2023591850, 203625826, -1807786116, 168417098, -1181838643, 767852672, -1463304317, -331030260, 2022236096, -387121756, 1331932719, -2056647129, -1531812353, -1327590000, 1762430530, 285172143, 696944861, -695646254, 468521648, -1006161062, 1884631304, -1189102016, -2061476288, -1263836725, 1399880213, -1132111383, 2128923016, -1687223805, -927353900, -498800332, 2123830244, 564893404, 207971100, -838860419, 239972147, 993996353, -544660981, -986853202, -1839029782, 724393123, 125520109, 2019577342, 515823904, 1137635951, -1263780594, -1934815989, -976817554, -291065076, -1599408896, -1666956017, 1862540968, 294116393, 1130190574, 25899071, 559632621, -788333900, -1491839314, 1531696881, -342938062, -1424382300, 1464944787, 1070383118, -31360542, -1321050994, 2079608377, 749678946, 1604962919, 1896884928, 122487966, -398403177, -1684736436, 1601678511, -1940543603, 1706874972, 1207743005, 923955440, 609907640, -736942096, 1383418256, 221524690, 1035215964, 370690032, 1129565372, -358357677, -727599792, -1340036142, -380408671, 501844507, 846071191, 1393256178, 178936656, 1538675785, 224599708};
-            boolean existsInVisible = false;
-            for (int i : visible) {
-                if (val == i) existsInVisible = true;
-            }
-            if (!existsInVisible) okay = false;
-
             if (okay) newSpheres.add(sphere);
         }
         spheres = newSpheres;
 
-        //ColorRGB[][] tennis = TexturedSphere.calculateTextureMap("textures/balls/tennis.png");
-        //ColorRGB[][] basketball = TexturedSphere.calculateTextureMap("textures/balls/basketball.png");
-        ColorRGB[][] basketball2 = TexturedSphere.calculateTextureMap("textures/balls/basketball2.png");
-        ColorRGB[][] football = TexturedSphere.calculateTextureMap("textures/balls/football2.png");
-        //ColorRGB[][] football2 = TexturedSphere.calculateTextureMap("textures/balls/football2.png");
-        //ColorRGB[][] golf = TexturedSphere.calculateTextureMap("textures/balls/golf.png");
-        //ColorRGB[][] golf2 = TexturedSphere.calculateTextureMap("textures/balls/golf2.png");
-        //ColorRGB[][] volleyball = TexturedSphere.calculateTextureMap("textures/balls/volleyball.png");
-
-        ColorRGB[][] earth = TexturedSphere.calculateTextureMap("textures/planets/2k_earth_daymap.png");
-        ColorRGB[][] moon = TexturedSphere.calculateTextureMap("textures/planets/2k_moon.png");
-        ColorRGB[][] venus = TexturedSphere.calculateTextureMap("textures/planets/2k_venus_surface.png");
-        ColorRGB[][] jupiter1 = TexturedSphere.calculateTextureMap("textures/planets/2k_jupiter.png");
-        ColorRGB[][] jupiter = TexturedSphere.calculateTextureMap("textures/planets/2k_jupiter.png");
-        ColorRGB[][] mars = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
-        ColorRGB[][] neptune = TexturedSphere.calculateTextureMap("textures/planets/2k_neptune.png");
+        //Texture tennis = TexturedSphere.calculateTextureMap("textures/balls/tennis.png");
+        //Texture basketball = TexturedSphere.calculateTextureMap("textures/balls/basketball.png");
+        Texture basketball2 = TexturedSphere.calculateTextureMap("textures/balls/basketball2.png");
+        Texture football = TexturedSphere.calculateTextureMap("textures/balls/football2.png");
+        //Texture football2 = TexturedSphere.calculateTextureMap("textures/balls/football2.png");
+        //Texture golf = TexturedSphere.calculateTextureMap("textures/balls/golf.png");
+        //Texture golf2 = TexturedSphere.calculateTextureMap("textures/balls/golf2.png");
+        //Texture volleyball = TexturedSphere.calculateTextureMap("textures/balls/volleyball.png");
+
+        Texture earth = TexturedSphere.calculateTextureMap("textures/planets/2k_earth_daymap.png");
+        Texture moon = TexturedSphere.calculateTextureMap("textures/planets/2k_moon.png");
+        Texture venus = TexturedSphere.calculateTextureMap("textures/planets/2k_venus_surface.png");
+        Texture jupiter1 = TexturedSphere.calculateTextureMap("textures/planets/2k_jupiter.png");
+        Texture jupiter = TexturedSphere.calculateTextureMap("textures/planets/2k_jupiter.png");
+        Texture mars = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
+        Texture neptune = TexturedSphere.calculateTextureMap("textures/planets/2k_neptune.png");
         for (Sphere sphere : spheres) {
             TexturedSphere temp = null;
             switch (sphere.label) {
@@ -563,12 +617,7 @@ public class Scene {
             }
         }
 
-        ColorRGB[][] sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
-        for (int i = 0; i < sun.length; i++) {
-            for (int j = 0; j < sun[i].length; j++) {
-                sun[i][j] = sun[i][j];
-            }
-        }
+        Texture sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
         TexturedSphere bigSun = new TexturedSphere(new Vector3(0.7, 0.3, 0.75), 0.58, white, sun, "8k_sun.png");
         scene.addObject(bigSun);
 
@@ -576,12 +625,7 @@ public class Scene {
         scene.addPointLight(new PointLight(new Vector3(0, 0, 0), new ColorRGB(1, 0.7, 0.7), 20));
         scene.addPointLight(new PointLight(new Vector3(2, 2, 5), new ColorRGB(1, 0.8, 0.5), 40));
 
-        ColorRGB[][] stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png");
-        for (int i = 0; i < stars.length; i++) {
-            for (int j = 0; j < stars[i].length; j++) {
-                stars[i][j] = stars[i][j].scale(10);
-            }
-        }
+        Texture stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png").scaled(10);
         InsideOutSphere background = new InsideOutSphere(new Vector3(0, 0, 800), 1000, white, stars, "8k_stars_milky.png");
         scene.addObject(background);
 
@@ -634,11 +678,9 @@ public class Scene {
 
         ArrayList<Sphere> spheres = new ArrayList<>(iterations[0]);
         for (int iteration = 1; iteration <= maxIterations; iteration++) {
-            iterations[iteration] = new ArrayList<>();
-            for (Sphere sphere : spheres) {
-                for (Sphere base : bases) {
-                    iterations[iteration].add(sphere.invert(base).setLabel(iteration));
-                }
+            iterations[iteration] = SceneBuilder.invertAll(spheres, bases);
+            for (Sphere inverted : iterations[iteration]) {
+                inverted.setLabel(iteration);
             }
             spheres.addAll(iterations[iteration]);
 
@@ -651,18 +693,8 @@ public class Scene {
         }
         spheres.addAll(allInverted);
 
-        ArrayList<Sphere> newSpheres = new ArrayList<>();
-        for (Sphere sphere : spheres) {
-            boolean unique = true;
-            for (Sphere newSphere : newSpheres) {
-                if (sphere.position.subtract(newSphere.position).magnitude() < 0.001 &&
-                        Math.abs(sphere.radius - newSphere.radius) < 0.001) {
-                    unique = false;
-                }
-            }
-            if (unique) newSpheres.add(sphere);
-        }
-        spheres = newSpheres;
+        spheres = SceneBuilder.deduplicate(spheres);
+        ArrayList<Sphere> newSpheres;
 
         newSpheres = new ArrayList<>();
         for (Sphere sphere : spheres) {
@@ -690,39 +722,26 @@ public class Scene {
             if (sphere.position.magnitude() < sphere.radius) okay = false;
             if (sphere.position.subtract(remove.position).magnitude() < sphere.radius + remove.radius) okay = false;
             //if (sphere.position.z > 9.1) okay = false;
-            int[] justVisible = new int[]{-278600875, -808391239, 420797800, 77070566, 1789875790, -572257562, -1881751354, 1109833632, 640763280, -284334934, -1507098224, 576854948, 2144973362};
-            int val = Renderer.hashPos(sphere.position);
-            for (int i : justVisible) {
-                if (i == val) okay = false;
-            }
-
-            int[] visible = new int[]{597335448, 2143700931, -1652393083, -475534417, -989260030, 1564346152, 26804608, 1093479222, -816093376, -636318708, -1747360258, -2063626033, -1633757013, -355191583, 224472921, -485471958, -1267774383, 1225158983, -102569565, 1029173013, 1346453511, -1849896971, -1366257956, -2004657969, -1365242127, 1062381316, 919728777, 1017854707, -870307716, -175638053, 2051578389, -1986405383, -290855733, 423570263, -1195597611, 1620679927, -289849641, 1399137560, 1493620100, 477000424, 2117382845, -1749759171, -1456384581, 1718545634, 164298054, 699928885, 1037941074, 1982882465, 1818795259, 881634838, 1518813734, 1081534165, 209244380, 134488236, 1640719714, -1156513859, 2060675168, -1709410135, 2018598116, 786835035, 66305356, -2147256638, -1697335787, -1834554268, 2147066685, -1047945906, -643732630, 789772766, 769762093, -1384633417, -1250578523, -220031440, 419939285, -1297709456, -1789579901, 1408830753, -244678222, -1679162061, -2043207954, -385184810, -1471491436, 1088141374, 1159822281, 981668459, 891231728, 123124, 890058230, 1185616809, 692376641, -724874785, -1757330859, 790097922, 568524539, 1952864122, -268052200, -1143682314, 24476247, 2004141661, 891828737, 132296904, -489149454, 892209664, 1708283132, 1212659575, 122162810, -2023591850, 203625826, -1807786116, 168417098, -1181838643, 767852672, -1463304317, -331030260, 2022236096, -387121756, 1331932719, -2056647129, -1531812353, -1327590000, 1762430530, 285172143, 696944861, -695646254, 468521648, -1006161062, 1884631304, -1189102016, -2061476288, -1263836725, 1399880213, -1132111383, 2128923016, -1687223805, -927353900, -498800332, 2123830244, 564893404, 207971100, -838860419, 239972147, 993996353, -544660981, -986853202, -1839029782, 724393123, 125520109, 2019577342, 515823904, 1137635951, -1263780594, -1934815989, -976817554, -291065076, -1599408896, -1666956017, 1862540968, 294116393, 1130190574, 25899071, 559632621, -788333900, -1491839314, 1531696881, -342938062, -1424382300, 1464944787, 1070383118, -31360542, -1321050994, 2079608377, 749678946, 1604962919, 1896884928, 122487966, -398403177, -1684736436, 1601678511, -1940543603, 1706874972, 1207743005, 923955440, 609907640, -736942096, 1383418256, 221524690, 1035215964, 370690032, 1129565372, -358357677, -727599792, -1340036142, -380408671, 501844507, 846071191, 1393256178, 178936656, 1538675785, 224599708};
-            boolean existsInVisible = false;
-            for (int i : visible) {
-                if (val == i) existsInVisible = true;
-            }
-            if (!existsInVisible) okay = false;
-
             if (okay) newSpheres.add(sphere);
         }
         spheres = newSpheres;
 
-        //ColorRGB[][] tennis = TexturedSphere.calculateTextureMap("textures/balls/tennis.png");
-        //ColorRGB[][] basketball = TexturedSphere.calculateTextureMap("textures/balls/basketball.png");
-        ColorRGB[][] basketball2 = TexturedSphere.calculateTextureMap("textures/balls/basketball2.png");
-        ColorRGB[][] football = TexturedSphere.calculateTextureMap("textures/balls/football.png");
-        //ColorRGB[][] football2 = TexturedSphere.calculateTextureMap("textures/balls/football2.png");
-        //ColorRGB[][] golf = TexturedSphere.calculateTextureMap("textures/balls/golf.png");
-        //ColorRGB[][] golf2 = TexturedSphere.calculateTextureMap("textures/balls/golf2.png");
-        //ColorRGB[][] volleyball = TexturedSphere.calculateTextureMap("textures/balls/volleyball.png");
-
-        ColorRGB[][] earth = TexturedSphere.calculateTextureMap("textures/planets/2k_earth_daymap.png");
-        ColorRGB[][] moon = TexturedSphere.calculateTextureMap("textures/planets/2k_moon.png");
-        ColorRGB[][] venus = TexturedSphere.calculateTextureMap("textures/planets/2k_venus_surface.png");
-        ColorRGB[][] jupiter1 = TexturedSphere.calculateTextureMap("textures/planets/1k_jupiter.png");
-        ColorRGB[][] jupiter = TexturedSphere.calculateTextureMap("textures/planets/2k_jupiter.png");
-        ColorRGB[][] mars = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
-        ColorRGB[][] neptune = TexturedSphere.calculateTextureMap("textures/planets/2k_neptune.png");
+        //Texture tennis = TexturedSphere.calculateTextureMap("textures/balls/tennis.png");
+        //Texture basketball = TexturedSphere.calculateTextureMap("textures/balls/basketball.png");
+        Texture basketball2 = TexturedSphere.calculateTextureMap("textures/balls/basketball2.png");
+        Texture football = TexturedSphere.calculateTextureMap("textures/balls/football.png");
+        //Texture football2 = TexturedSphere.calculateTextureMap("textures/balls/football2.png");
+        //Texture golf = TexturedSphere.calculateTextureMap("textures/balls/golf.png");
+        //Texture golf2 = TexturedSphere.calculateTextureMap("textures/balls/golf2.png");
+        //Texture volleyball = TexturedSphere.calculateTextureMap("textures/balls/volleyball.png");
+
+        Texture earth = TexturedSphere.calculateTextureMap("textures/planets/2k_earth_daymap.png");
+        Texture moon = TexturedSphere.calculateTextureMap("textures/planets/2k_moon.png");
+        Texture venus = TexturedSphere.calculateTextureMap("textures/planets/2k_venus_surface.png");
+        Texture jupiter1 = TexturedSphere.calculateTextureMap("textures/planets/1k_jupiter.png");
+        Texture jupiter = TexturedSphere.calculateTextureMap("textures/planets/2k_jupiter.png");
+        Texture mars = TexturedSphere.calculateTextureMap("textures/planets/2k_mars.png");
+        Texture neptune = TexturedSphere.calculateTextureMap("textures/planets/2k_neptune.png");
         for (Sphere sphere : spheres) {
             TexturedSphere temp = null;
             switch (sphere.label) {
@@ -754,12 +773,7 @@ public class Scene {
             }
         }
 
-        ColorRGB[][] sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
-        for (int i = 0; i < sun.length; i++) {
-            for (int j = 0; j < sun[i].length; j++) {
-                sun[i][j] = sun[i][j];
-            }
-        }
+        Texture sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
         TexturedSphere bigSun = new TexturedSphere(new Vector3(0.7, 0.3, 0.75), 0.58, white, sun, "2k_sun.png");
         scene.addObject(bigSun);
 
@@ -767,12 +781,7 @@ public class Scene {
         scene.addPointLight(new PointLight(new Vector3(0, 0, 0), new ColorRGB(1, 0.7, 0.7), 20));
         scene.addPointLight(new PointLight(new Vector3(2, 2, 5), new ColorRGB(1, 0.8, 0.5), 40));
 
-        ColorRGB[][] stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png");
-        for (int i = 0; i < stars.length; i++) {
-            for (int j = 0; j < stars[i].length; j++) {
-                stars[i][j] = stars[i][j].scale(10);
-            }
-        }
+        Texture stars = TexturedSphere.calculateTextureMap("textures/planets/2k_stars_milky_way.png").scaled(10);
         InsideOutSphere background = new InsideOutSphere(new Vector3(0, 0, 800), 1000, white, stars, "2k_stars_milky_way.png");
         scene.addObject(background);
 
@@ -845,13 +854,9 @@ public class Scene {
         ColorRGB[] colors = new ColorRGB[]{blue, purple, orange, yellow};
         for (int iteration = 0; iteration < 2; iteration++) {
             ColorRGB colour = colors[iteration];
-            newSpheres = new ArrayList<>();
-            for (Sphere sphere : spheres) {
-                for (Sphere base : bases) {
-                    Sphere inverted = sphere.invert(base);
-                    inverted.colour = colour;
-                    newSpheres.add(inverted);
-                }
+            newSpheres = SceneBuilder.invertAll(spheres, bases);
+            for (Sphere inverted : newSpheres) {
+                inverted.colour = colour;
             }
             spheres.addAll(newSpheres);
 
@@ -865,20 +870,7 @@ public class Scene {
         }
         spheres.addAll(allInverted);
 
-        newSpheres = new ArrayList<>();
-        for (Sphere sphere : spheres) {
-            boolean unique = true;
-            for (Sphere newSphere : newSpheres) {
-                if (sphere.position.subtract(newSphere.position).magnitude() < 0.001 && Math.abs(sphere.radius - newSphere.radius) < 0.001) {
-                    unique = false;
-                    break;
-                }
-            }
-            if (unique) {
-                newSpheres.add(sphere);
-            }
-        }
-        spheres = newSpheres;
+        spheres = SceneBuilder.deduplicate(spheres);
 
         Sphere remove = new Sphere(new Vector3(1, 5 + 1000, -2), 4, white);
 
@@ -939,18 +931,8 @@ public class Scene {
         for (PointLight pointLight : pointLights) {
             scene.addPointLight(pointLight);
         }
-        ColorRGB[][] sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png");
-        for (int i = 0; i < sun.length; i++) {
-            for (int j = 0; j < sun[i].length; j++) {
-                sun[i][j] = sun[i][j].scale(3);
-            }
-        }
-        ColorRGB[][] earth = TexturedSphere.calculateTextureMap("textures/planets/2k_earth_daymap.png");
-        for (int i = 0; i < earth.length; i++) {
-            for (int j = 0; j < earth[i].length; j++) {
-                earth[i][j] = earth[i][j].scale(3);
-            }
-        }
+        Texture sun = TexturedSphere.calculateTextureMap("textures/planets/2k_sun.png").scaled(3);
+        Texture earth = TexturedSphere.calculateTextureMap("textures/planets/2k_earth_daymap.png").scaled(3);
         for (Sphere sphere : spheres) {
             scene.addObject(sphere);
             /*if (sphere.radius > r1) {
@@ -1069,35 +1051,15 @@ public class Scene {
         ColorRGB[] colors = new ColorRGB[]{blue, purple, orange, yellow};
         for (int iteration = 0; iteration < 2; iteration++) {
             ColorRGB colour = colors[iteration];
-            ArrayList<Sphere> newSpheres = new ArrayList<>();
-            for (Sphere sphere : spheres) {
-                for (Sphere base : bases) {
-                    Sphere inverted = sphere.invert(base);
-                    /*if (inverted.position.x == 0 && inverted.position.z == 0 && inverted.position.y > 0) {
-                        System.out.format("Pos: %f, %f, %f\n", inverted.position.x, inverted.position.y, inverted.position.z);
-                        System.out.format("sphere, base: %d, %d\n", i, j);
-                    }*/
-                    inverted.colour = colour;
-                    newSpheres.add(inverted);
-                }
+            ArrayList<Sphere> newSpheres = SceneBuilder.invertAll(spheres, bases);
+            for (Sphere inverted : newSpheres) {
+                inverted.colour = colour;
             }
             spheres.addAll(newSpheres);
         }
 
-        ArrayList<Sphere> newSpheres = new ArrayList<>();
-        for (Sphere sphere : spheres) {
-            boolean unique = true;
-            for (Sphere newSphere : newSpheres) {
-                if (sphere.position.subtract(newSphere.position).magnitude() < 0.001 && Math.abs(sphere.radius - newSphere.radius) < 0.001) {
-                    unique = false;
-                    break;
-                }
-            }
-            if (unique) {
-                newSpheres.add(sphere);
-            }
-        }
-        spheres = newSpheres;
+        spheres = SceneBuilder.deduplicate(spheres);
+        ArrayList<Sphere> newSpheres;
 
         Sphere remove = new Sphere(new Vector3(0, 3.5, 0), 2, white);
         //spheres.add(remove);
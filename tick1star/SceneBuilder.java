@@ -0,0 +1,136 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/*
+ * Building blocks for the scenes generated by repeatedly inverting spheres in a set of base spheres. The
+ * inversions are computed in parallel and duplicates are found through a spatial hash, so deeper iterations
+ * are no longer dominated by comparing every new sphere against every sphere accepted so far. Most of the
+ * spheres generated end up hidden. The generators keep them all; cull removes those that never contribute to
+ * a given render, and Tick1 only runs it when asked to with --cull.
+ */
+public class SceneBuilder {
+
+    // Spheres closer than this in both position and radius are duplicates
+    public static final double TOLERANCE = 0.001;
+
+    /*
+     * The inversion of every sphere in every base sphere, ordered by sphere and then by base, as produced by
+     * nested loops over spheres and bases. Spheres are inverted in parallel.
+     */
+    public static ArrayList<Sphere> invertAll(List<Sphere> spheres, List<Sphere> bases) {
+        Sphere[] sphereArray = spheres.toArray(new Sphere[0]);
+        Sphere[] baseArray = bases.toArray(new Sphere[0]);
+        Sphere[] inverted = new Sphere[sphereArray.length * baseArray.length];
+        IntStream.range(0, sphereArray.length).parallel().forEach(i -> {
+            for (int j = 0; j < baseArray.length; j++) {
+                inverted[i * baseArray.length + j] = sphereArray[i].invert(baseArray[j]);
+            }
+        });
+        return new ArrayList<>(Arrays.asList(inverted));
+    }
+
+    /*
+     * The spheres in order, without any that are within TOLERANCE in position and radius of an earlier sphere
+     * that was kept. Accepted spheres are hashed by the cell of a grid of TOLERANCE spacing their position falls
+     * in, so only the 27 cells around a sphere need to be searched.
+     */
+    public static ArrayList<Sphere> deduplicate(List<Sphere> spheres) {
+        ArrayList<Sphere> unique = new ArrayList<>();
+        Map<Long, List<Sphere>> grid = new HashMap<>();
+        for (Sphere sphere : spheres) {
+            long x = cell(sphere.position.x), y = cell(sphere.position.y), z = cell(sphere.position.z);
+            if (!hasDuplicate(grid, sphere, x, y, z)) {
+                unique.add(sphere);
+                grid.computeIfAbsent(key(x, y, z), k -> new ArrayList<>(1)).add(sphere);
+            }
+        }
+        return unique;
+    }
+
+    /*
+     * A scene with only the objects of scene that contribute to an image rendered by prePass: objects hit by
+     * camera or reflection rays, and the closest blocker of every occluded shadow ray. Rendered with the same
+     * rays, the culled scene gives the same image; a pre-pass of lower resolution than the final render is
+     * cheaper, but may miss objects smaller than its pixels. Lights and ambient light are shared with scene.
+     */
+    public static Scene cull(Scene scene, Renderer prePass) {
+        RecordingScene recording = new RecordingScene(scene);
+        Camera camera = new Camera(prePass.getWidth(), prePass.getHeight());
+        prePass.renderTiles(recording, (x, y, tracer, sampler) ->
+                prePass.renderPixel(recording, camera, x, y, tracer, sampler), false);
+        recording.visibility.merge();
+
+        Scene culled = new Scene();
+        for (SceneObject object : recording.visibility.getVisibleObjects()) culled.addObject(object);
+        for (PointLight light : scene.getPointLights()) culled.addPointLight(light);
+        culled.setAmbientLight(scene.getAmbientLighting());
+        return culled;
+    }
+
+    // Scene wrapper recording every object that determines the result of a ray cast into it
+    private static class RecordingScene extends Scene {
+        final VisibilityStats visibility;
+
+        RecordingScene(Scene scene) {
+            for (SceneObject object : scene.getObjects()) addObject(object);
+            for (PointLight light : scene.getPointLights()) addPointLight(light);
+            setAmbientLight(scene.getAmbientLighting());
+            visibility = new VisibilityStats(this);
+        }
+
+        // Every query ends up here, whether it was made with a Ray or with primitives
+        @Override
+        public SceneObject findClosestObject(double ox, double oy, double oz, double dx, double dy, double dz,
+                                             double[] hit, BVH.TraversalStack stack) {
+            SceneObject object = super.findClosestObject(ox, oy, oz, dx, dy, dz, hit, stack);
+            if (object != null && hit[1] != Double.POSITIVE_INFINITY) visibility.record(object);
+            return object;
+        }
+
+        // Occluded exactly when the closest object along the ray is nearer than maxDistance
+        @Override
+        public boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+                                  double maxDistance, BVH.TraversalStack stack) {
+            double[] hit = new double[2];
+            SceneObject object = super.findClosestObject(ox, oy, oz, dx, dy, dz, hit, stack);
+            if (object != null && hit[1] * Math.sqrt(dx * dx + dy * dy + dz * dz) < maxDistance) {
+                visibility.record(object);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private static boolean hasDuplicate(Map<Long, List<Sphere>> grid, Sphere sphere, long x, long y, long z) {
+        for (long dx = -1; dx <= 1; dx++) {
+            for (long dy = -1; dy <= 1; dy++) {
+                for (long dz = -1; dz <= 1; dz++) {
+                    List<Sphere> candidates = grid.get(key(x + dx, y + dy, z + dz));
+                    if (candidates == null) continue;
+                    for (Sphere candidate : candidates) {
+                        if (sphere.position.subtract(candidate.position).magnitude() < TOLERANCE
+                                && Math.abs(sphere.radius - candidate.radius) < TOLERANCE) {
+                            return true;
+                        }
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static long cell(double coordinate) {
+        return (long) Math.floor(coordinate / TOLERANCE);
+    }
+
+    // Distinct cells may share a key, which only adds candidates that fail the exact comparison
+    private static long key(long x, long y, long z) {
+        return Sampler.mix(Sampler.mix(Sampler.mix(x) ^ y) ^ z);
+    }
+}
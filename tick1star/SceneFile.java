@@ -0,0 +1,376 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/*
+ * Compact binary scene format, written and read through a memory-mapped file so that generated scenes with
+ * millions of spheres can be saved once and loaded in a fraction of the time of building or parsing them.
+ *
+ * Layout, big-endian:
+ *   header     magic, version, string count, material count, light count, object count (ints),
+ *              ambient light r, g, b (doubles)
+ *   strings    length (int) and UTF-8 bytes of each texture file and colour name
+ *   materials  r, g, b, kD, kS, alpha, reflectivity (doubles) and colour name string (int, -1 for none)
+ *   lights     x, y, z, r, g, b, intensity (doubles)
+ *   objects    kind and material (ints) then by kind
+ *                SPHERE        x, y, z, radius
+ *                PLANE         x, y, z, nx, ny, nz
+ *                BUMPY_SPHERE  bump map string (int, -1 for a smooth sphere), x, y, z, radius
+ *                TEXTURED_SPHERE, INSIDE_OUT_SPHERE
+ *                              texture string (int, -1 for the material colour), texture scale, x, y, z,
+ *                              radius, angle, axis x, y, z of the texture rotation
+ *
+ * Objects keep their order, so a scene read back renders exactly like the one written. Textures are stored
+ * as the path of the image they were read from and the factor their colours are scaled by, and loaded from
+ * their files when the scene is read.
+ *
+ * Usage: SceneFile INPUT OUTPUT converts between formats. INPUT is an XML scene, a binary scene or the name
+ * of one of the Scene.create methods (e.g. create11); OUTPUT is written as XML if it ends in .xml.
+ */
+public class SceneFile {
+
+    public static final String EXTENSION = ".scene";
+
+    private static final int MAGIC = 0x54315343;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 6 * 4 + 3 * 8;
+
+    // Kinds of object record
+    private static final int SPHERE = 0;
+    private static final int PLANE = 1;
+    private static final int BUMPY_SPHERE = 2;
+    private static final int TEXTURED_SPHERE = 3;
+    private static final int INSIDE_OUT_SPHERE = 4;
+
+    // Surface properties shared by many objects, stored once
+    private static final class Material {
+        final double[] values;
+        final String colourName;
+
+        // Shared by the objects read with this material
+        final ColorRGB colour;
+
+        Material(SceneObject object) {
+            values = new double[]{object.colour.r, object.colour.g, object.colour.b, object.phong_kD,
+                    object.phong_kS, object.phong_alpha, object.reflectivity};
+            colourName = object instanceof Sphere ? ((Sphere) object).colorName : null;
+            colour = object.colour;
+        }
+
+        Material(ByteBuffer buffer, List<String> strings) {
+            values = new double[7];
+            for (int i = 0; i < values.length; i++) values[i] = buffer.getDouble();
+            int name = buffer.getInt();
+            colourName = name < 0 ? null : strings.get(name);
+            colour = new ColorRGB(values[0], values[1], values[2]);
+        }
+
+        void applyTo(SceneObject object) {
+            object.colour = colour;
+            object.phong_kD = values[3];
+            object.phong_kS = values[4];
+            object.phong_alpha = values[5];
+            object.reflectivity = values[6];
+            if (colourName != null && object instanceof Sphere) ((Sphere) object).colorName = colourName;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Material && Arrays.equals(values, ((Material) other).values)
+                    && Objects.equals(colourName, ((Material) other).colourName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(values) + Objects.hashCode(colourName);
+        }
+    }
+
+    // Assigns indices to distinct values in order of first use
+    private static final class Table<T> {
+        final Map<T, Integer> indices = new HashMap<>();
+        final List<T> values = new ArrayList<>();
+
+        int indexOf(T value) {
+            if (value == null) return -1;
+            return indices.computeIfAbsent(value, v -> {
+                values.add(v);
+                return values.size() - 1;
+            });
+        }
+    }
+
+    private static int kindOf(SceneObject object) throws IOException {
+        if (object.getClass() == Sphere.class) return SPHERE;
+        if (object.getClass() == Plane.class) return PLANE;
+        if (object.getClass() == BumpySphere.class) return BUMPY_SPHERE;
+        if (object.getClass() == TexturedSphere.class) return TEXTURED_SPHERE;
+        if (object.getClass() == InsideOutSphere.class) return INSIDE_OUT_SPHERE;
+        throw new IOException("Cannot write objects of type " + object.getClass().getSimpleName());
+    }
+
+    private static int recordSize(int kind) {
+        switch (kind) {
+            case SPHERE:
+                return 8 + 4 * 8;
+            case PLANE:
+                return 8 + 6 * 8;
+            case BUMPY_SPHERE:
+                return 12 + 4 * 8;
+            default:
+                return 12 + 9 * 8;
+        }
+    }
+
+    public static void write(Scene scene, Path file) throws IOException {
+        // The tables and the size of the file are found first, so the whole file can be mapped at once
+        List<SceneObject> objects = new ArrayList<>(scene.getObjects());
+        Table<String> strings = new Table<>();
+        Table<Material> materials = new Table<>();
+        int[] kinds = new int[objects.size()];
+        int[] materialIndices = new int[objects.size()];
+        int[] stringIndices = new int[objects.size()];
+        long size = HEADER_SIZE;
+        Material previous = null;
+        for (int i = 0; i < objects.size(); i++) {
+            SceneObject object = objects.get(i);
+            kinds[i] = kindOf(object);
+            Material material = new Material(object);
+            // Neighbouring objects usually share a material, which saves the lookup
+            if (material.equals(previous)) {
+                materialIndices[i] = materialIndices[i - 1];
+            } else {
+                strings.indexOf(material.colourName);
+                materialIndices[i] = materials.indexOf(material);
+                previous = material;
+            }
+            if (object instanceof BumpySphere) stringIndices[i] = strings.indexOf(((BumpySphere) object).bumpMap);
+            if (object instanceof TexturedSphere) {
+                stringIndices[i] = strings.indexOf(sourceOf(((TexturedSphere) object).getTextureMap()));
+            }
+            if (object instanceof InsideOutSphere) {
+                stringIndices[i] = strings.indexOf(sourceOf(((InsideOutSphere) object).getTextureMap()));
+            }
+            size += recordSize(kinds[i]);
+        }
+        List<byte[]> encoded = new ArrayList<>();
+        for (String string : strings.values) {
+            encoded.add(string.getBytes(StandardCharsets.UTF_8));
+            size += 4 + encoded.get(encoded.size() - 1).length;
+        }
+        size += materials.values.size() * (7 * 8 + 4L) + scene.getPointLights().size() * 7 * 8L;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Scene too large for a single file mapping: " + size + " bytes");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+            ColorRGB ambient = scene.getAmbientLighting();
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(encoded.size()).putInt(materials.values.size())
+                    .putInt(scene.getPointLights().size()).putInt(objects.size());
+            buffer.putDouble(ambient.r).putDouble(ambient.g).putDouble(ambient.b);
+
+            for (byte[] bytes : encoded) {
+                buffer.putInt(bytes.length).put(bytes);
+            }
+            for (Material material : materials.values) {
+                for (double value : material.values) buffer.putDouble(value);
+                buffer.putInt(strings.indexOf(material.colourName));
+            }
+            for (PointLight light : scene.getPointLights()) {
+                putVector(buffer, light.getPosition());
+                ColorRGB colour = light.getColour();
+                buffer.putDouble(colour.r).putDouble(colour.g).putDouble(colour.b).putDouble(light.getIntensity());
+            }
+
+            for (int i = 0; i < objects.size(); i++) {
+                SceneObject object = objects.get(i);
+                buffer.putInt(kinds[i]).putInt(materialIndices[i]);
+                if (kinds[i] == PLANE) {
+                    Plane plane = (Plane) object;
+                    putVector(buffer, plane.point);
+                    putVector(buffer, plane.normal);
+                    continue;
+                }
+                Sphere sphere = (Sphere) object;
+                if (kinds[i] != SPHERE) buffer.putInt(stringIndices[i]);
+                if (kinds[i] == TEXTURED_SPHERE) {
+                    buffer.putDouble(scaleOf(((TexturedSphere) sphere).getTextureMap()));
+                } else if (kinds[i] == INSIDE_OUT_SPHERE) {
+                    buffer.putDouble(scaleOf(((InsideOutSphere) sphere).getTextureMap()));
+                }
+                putVector(buffer, sphere.position);
+                buffer.putDouble(sphere.radius);
+                if (kinds[i] == TEXTURED_SPHERE) {
+                    TexturedSphere textured = (TexturedSphere) sphere;
+                    buffer.putDouble(textured.randomAngle);
+                    putVector(buffer, textured.randomAxis);
+                } else if (kinds[i] == INSIDE_OUT_SPHERE) {
+                    InsideOutSphere insideOut = (InsideOutSphere) sphere;
+                    buffer.putDouble(insideOut.randomAngle);
+                    putVector(buffer, insideOut.randomAxis);
+                }
+            }
+        }
+    }
+
+    public static Scene read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Not a scene file: " + file);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer, file);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new IOException("Scene file " + file + " is truncated or corrupt");
+        }
+    }
+
+    private static Scene read(ByteBuffer buffer, Path file) throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC) {
+            throw new IOException("Not a scene file: " + file);
+        }
+        if (buffer.getInt() != VERSION) {
+            throw new IOException("Unsupported scene file version: " + file);
+        }
+        int stringCount = buffer.getInt(), materialCount = buffer.getInt();
+        int lightCount = buffer.getInt(), objectCount = buffer.getInt();
+        Scene scene = new Scene();
+        scene.setAmbientLight(new ColorRGB(buffer.getDouble(), buffer.getDouble(), buffer.getDouble()));
+
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < stringCount; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            strings.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        Material[] materials = new Material[materialCount];
+        for (int i = 0; i < materialCount; i++) {
+            materials[i] = new Material(buffer, strings);
+        }
+        for (int i = 0; i < lightCount; i++) {
+            Vector3 position = getVector(buffer);
+            ColorRGB colour = new ColorRGB(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+            scene.addPointLight(new PointLight(position, colour, buffer.getDouble()));
+        }
+
+        for (int i = 0; i < objectCount; i++) {
+            int kind = buffer.getInt();
+            Material material = materials[buffer.getInt()];
+            SceneObject object;
+            if (kind == PLANE) {
+                object = new Plane(getVector(buffer), getVector(buffer), Scene.white);
+            } else if (kind == SPHERE) {
+                object = new Sphere(getVector(buffer), buffer.getDouble(), Scene.white);
+            } else {
+                int string = buffer.getInt();
+                String texture = string < 0 ? null : strings.get(string);
+                double scale = kind == BUMPY_SPHERE ? 1 : buffer.getDouble();
+                Vector3 position = getVector(buffer);
+                double radius = buffer.getDouble();
+                ColorRGB colour = material.colour;
+                switch (kind) {
+                    case BUMPY_SPHERE:
+                        object = new BumpySphere(position, radius, colour, texture);
+                        break;
+                    case TEXTURED_SPHERE: {
+                        TexturedSphere textured = texture == null
+                                ? new TexturedSphere(new Sphere(position, radius, colour))
+                                : new TexturedSphere(position, radius, colour, readTexture(texture, scale), texture);
+                        textured.randomAngle = buffer.getDouble();
+                        textured.randomAxis = getVector(buffer);
+                        object = textured;
+                        break;
+                    }
+                    case INSIDE_OUT_SPHERE: {
+                        InsideOutSphere insideOut = texture == null
+                                ? new InsideOutSphere(new Sphere(position, radius, colour))
+                                : new InsideOutSphere(position, radius, colour, readTexture(texture, scale), texture);
+                        insideOut.randomAngle = buffer.getDouble();
+                        insideOut.randomAxis = getVector(buffer);
+                        object = insideOut;
+                        break;
+                    }
+                    default:
+                        throw new IOException("Unknown object kind " + kind + " in scene file " + file);
+                }
+            }
+            material.applyTo(object);
+            scene.addObject(object);
+        }
+        return scene;
+    }
+
+    // Textures are written as the image they were read from, which those built in memory do not have
+    private static String sourceOf(Texture texture) throws IOException {
+        if (texture != null && texture.getSource() == null) {
+            throw new IOException("Texture was not read from a file and cannot be referenced by a scene file");
+        }
+        return texture == null ? null : texture.getSource();
+    }
+
+    private static double scaleOf(Texture texture) {
+        return texture == null ? 1 : texture.getScale();
+    }
+
+    static Texture readTexture(String file, double scale) {
+        Texture texture = TexturedSphere.calculateTextureMap(file);
+        return texture == null || scale == 1 ? texture : texture.scaled(scale);
+    }
+
+    private static void putVector(ByteBuffer buffer, Vector3 v) {
+        buffer.putDouble(v.x).putDouble(v.y).putDouble(v.z);
+    }
+
+    private static Vector3 getVector(ByteBuffer buffer) {
+        return new Vector3(buffer.getDouble(), buffer.getDouble(), buffer.getDouble());
+    }
+
+    // An XML or binary scene file, or a scene built by the named Scene.create method
+    public static Scene load(String input) throws IOException {
+        if (input.endsWith(".xml")) {
+            return new SceneLoader(input, Runtime.getRuntime().availableProcessors()).getScene();
+        }
+        if (input.startsWith("create") && !Files.exists(Paths.get(input))) {
+            try {
+                return (Scene) Scene.class.getMethod(input).invoke(null);
+            } catch (ReflectiveOperationException e) {
+                throw new IOException("Cannot build scene " + input + ": " + (e.getCause() != null ? e.getCause() : e));
+            }
+        }
+        return read(Paths.get(input));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("USAGE: SceneFile INPUT OUTPUT");
+            System.exit(-1);
+        }
+        Scene scene = load(args[0]);
+        if (args[1].endsWith(".xml")) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(args[1]))) {
+                scene.writeXML(writer);
+            }
+        } else {
+            write(scene, Paths.get(args[1]));
+        }
+    }
+}
@@ -1,81 +1,184 @@
 package uk.ac.cam.cl.gfxintro.bh525.tick1star;
 
-import org.w3c.dom.Element;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import java.io.File;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class SceneLoader {
 	// Loads our scene from an XML file
-	
+	//
+	// The file is streamed, so only the elements not yet added to the scene are held in memory. Each element
+	// is turned into an object as it arrives or, with more than one thread, elements are collected into chunks
+	// whose attributes are parsed and objects built in parallel while the file is still being read. Objects
+	// and lights are added to the scene in document order either way.
+
+	// Number of elements handed to a thread at once
+	static final int CHUNK_SIZE = 1024;
+
 	private Scene scene;
 
 	public SceneLoader(String filename) {
+		this(filename, 1);
+	}
+
+	public SceneLoader(String filename, int threads) {
 		scene = new Scene();
 
-		Element document = null;
-		try {
-			document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(new File(filename))
-					.getDocumentElement();
-		} catch (ParserConfigurationException e) {
-			assert false;
+		ExecutorService pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		try (InputStream input = new BufferedInputStream(Files.newInputStream(Paths.get(filename)))) {
+			XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(input);
+			try {
+				if (reader.nextTag() != XMLStreamConstants.START_ELEMENT || !reader.getLocalName().equals("scene"))
+					throw new RuntimeException("scene file does not contain a scene element");
+
+				if (pool == null) {
+					// Every element below the scene, at any depth, in document order
+					while (reader.hasNext()) {
+						if (reader.next() == XMLStreamConstants.START_ELEMENT)
+							add(build(new Element(reader)));
+					}
+				} else {
+					loadParallel(reader, pool, threads);
+				}
+			} finally {
+				reader.close();
+			}
 		} catch (IOException e) {
 			throw new RuntimeException("error reading file:\n" + e.getMessage());
-		} catch (SAXException e) {
+		} catch (XMLStreamException e) {
 			throw new RuntimeException("error loading XML.");
+		} finally {
+			if (pool != null)
+				pool.shutdownNow();
+		}
+	}
+
+	// Read chunks of elements on this thread and build them on the pool, with a bounded number in flight
+	private void loadParallel(XMLStreamReader reader, ExecutorService pool, int threads) throws XMLStreamException {
+		ArrayDeque<Future<Object[]>> pending = new ArrayDeque<>();
+		List<Element> chunk = new ArrayList<>(CHUNK_SIZE);
+		while (reader.hasNext()) {
+			if (reader.next() == XMLStreamConstants.START_ELEMENT) {
+				chunk.add(new Element(reader));
+				if (chunk.size() == CHUNK_SIZE) {
+					pending.add(pool.submit(buildTask(chunk)));
+					chunk = new ArrayList<>(CHUNK_SIZE);
+					if (pending.size() >= 2 * threads)
+						addAll(pending.remove());
+				}
+			}
+		}
+		pending.add(pool.submit(buildTask(chunk)));
+		while (!pending.isEmpty())
+			addAll(pending.remove());
+	}
+
+	private static Callable<Object[]> buildTask(List<Element> chunk) {
+		return () -> {
+			Object[] built = new Object[chunk.size()];
+			for (int i = 0; i < built.length; ++i)
+				built[i] = build(chunk.get(i));
+			return built;
+		};
+	}
+
+	private void addAll(Future<Object[]> chunk) {
+		Object[] built;
+		try {
+			built = chunk.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted while loading scene");
+		} catch (ExecutionException e) {
+			// Rethrow errors such as an unknown tag as they would be thrown when loading on one thread
+			if (e.getCause() instanceof RuntimeException)
+				throw (RuntimeException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+		for (Object object : built)
+			add(object);
+	}
+
+	// Add an object built from an element to the scene
+	private void add(Object object) {
+		if (object instanceof SceneObject)
+			scene.addObject((SceneObject) object);
+		else if (object instanceof PointLight)
+			scene.addPointLight((PointLight) object);
+		else
+			scene.setAmbientLight((ColorRGB) object);
+	}
+
+	// The object, point light or ambient light colour described by an element
+	private static Object build(Element element) {
+		switch (element.name) {
+
+		case "sphere":
+			return withMaterial(new Sphere(getPosition(element), getDouble(element, "radius", 1), getColour(element),
+					getDouble(element, "kD", 0.8), getDouble(element, "kS", 1.2),
+					getDouble(element, "alphaS", 10), getDouble(element, "reflectivity", 0.3)
+					), element);
+
+		case "bumpy-sphere": {
+			// A sphere without a bump map is smooth
+			String bumpMap = getString(element, "bump-map");
+			return withMaterial(new BumpySphere(getPosition(element), getDouble(element, "radius", 1),
+					getColour(element), bumpMap.isEmpty() ? null : bumpMap), element);
+		}
+
+		case "textured-sphere": {
+			Sphere shape = new Sphere(getPosition(element), getDouble(element, "radius", 1), getColour(element));
+			Texture map = getTexture(element);
+			TexturedSphere sphere = map == null ? new TexturedSphere(shape) : new TexturedSphere(shape.position, shape.radius,
+					shape.colour, map, getString(element, "texture-map"));
+			if (!getString(element, "angle").isEmpty()) {
+				sphere.randomAngle = getDouble(element, "angle", 0);
+				sphere.randomAxis = getAxis(element);
+			}
+			return withMaterial(sphere, element);
 		}
 
-		if (document.getNodeName() != "scene")
-			throw new RuntimeException("scene file does not contain a scene element");
-
-		NodeList elements = document.getElementsByTagName("*");
-		for (int i = 0; i < elements.getLength(); ++i) {
-			Element element = (Element) elements.item(i);
-			switch (element.getNodeName()) {
-
-			case "sphere":
-				Sphere sphere = new Sphere(getPosition(element), getDouble(element, "radius", 1), getColour(element),
-						getDouble(element, "kD", 0.8), getDouble(element, "kS", 1.2),
-						getDouble(element, "alphaS", 10), getDouble(element, "reflectivity", 0.3)
-						);
-				scene.addObject(sphere);
-				break;
-				
-			case "bumpy-sphere":
-				BumpySphere bumpySphere = new BumpySphere(getPosition(element), getDouble(element, "radius", 1), getColour(element), getString(element, "bump-map"));
-				scene.addObject(bumpySphere);
-				break;
-
-			case "textured-sphere":
-				TexturedSphere texturedSphere = new TexturedSphere(getPosition(element), getDouble(element, "radius", 1), getColour(element), getString(element, "texture-map"));
-				scene.addObject(texturedSphere);
-				break;
-
-			case "plane":
-				Plane plane = new Plane(getPosition(element), getNormal(element), getColour(element),
-						getDouble(element, "kD", 0.8), getDouble(element, "kS", 1.2),
-						getDouble(element, "alphaS", 10), getDouble(element, "reflectivity", 0.3)
-						);
-				scene.addObject(plane);
-				break;
-
-			case "point-light":
-				PointLight light = new PointLight(getPosition(element), getColour(element),
-						getDouble(element, "intensity", 100));
-				scene.addPointLight(light);
-				break;
-
-			case "ambient-light":
-				scene.setAmbientLight(getColour(element).scale(getDouble(element, "intensity", 1)));
-				break;
-
-			default:
-				throw new RuntimeException("unknown object tag: " + element.getNodeName());
+		case "inside-out-sphere": {
+			Sphere shape = new Sphere(getPosition(element), getDouble(element, "radius", 1), getColour(element));
+			Texture map = getTexture(element);
+			InsideOutSphere sphere = map == null ? new InsideOutSphere(shape) : new InsideOutSphere(shape.position, shape.radius,
+					shape.colour, map, getString(element, "texture-map"));
+			if (!getString(element, "angle").isEmpty()) {
+				sphere.randomAngle = getDouble(element, "angle", 0);
+				sphere.randomAxis = getAxis(element);
 			}
+			return withMaterial(sphere, element);
+		}
+
+		case "plane":
+			return new Plane(getPosition(element), getNormal(element), getColour(element),
+					getDouble(element, "kD", 0.8), getDouble(element, "kS", 1.2),
+					getDouble(element, "alphaS", 10), getDouble(element, "reflectivity", 0.3)
+					);
+
+		case "point-light":
+			return new PointLight(getPosition(element), getColour(element),
+					getDouble(element, "intensity", 100));
+
+		case "ambient-light":
+			return getColour(element).scale(getDouble(element, "intensity", 1));
+
+		default:
+			throw new RuntimeException("unknown object tag: " + element.name);
 		}
 	}
 
@@ -83,21 +186,67 @@ public class SceneLoader {
 		return scene;
 	}
 
-	private Vector3 getPosition(Element tag) {
+	// Name and attributes of an element, copied from the reader so that it can be built later
+	private static class Element {
+		final String name;
+		final String[] attributes; // Alternating names and values
+
+		Element(XMLStreamReader reader) {
+			name = reader.getLocalName();
+			attributes = new String[2 * reader.getAttributeCount()];
+			for (int i = 0; i < reader.getAttributeCount(); ++i) {
+				attributes[2 * i] = reader.getAttributeLocalName(i);
+				attributes[2 * i + 1] = reader.getAttributeValue(i);
+			}
+		}
+
+		// Empty when the attribute is missing
+		String getAttribute(String attribute) {
+			for (int i = 0; i < attributes.length; i += 2) {
+				if (attributes[i].equals(attribute))
+					return attributes[i + 1];
+			}
+			return "";
+		}
+	}
+
+	private static Vector3 getPosition(Element tag) {
 		double x = getDouble(tag, "x", 0);
 		double y = getDouble(tag, "y", 0);
 		double z = getDouble(tag, "z", 0);
 		return new Vector3(x, y, z);
 	}
 
-	private Vector3 getNormal(Element tag) {
+	private static Vector3 getNormal(Element tag) {
 		double x = getDouble(tag, "nx", 0);
 		double y = getDouble(tag, "ny", 0);
 		double z = getDouble(tag, "nz", 0);
 		return new Vector3(x, y, z).normalised();
 	}
 
-	private ColorRGB getColour(Element tag) {
+	// The texture-map image scaled by texture-scale, or null for a sphere of its material colour
+	private static Texture getTexture(Element tag) {
+		String file = getString(tag, "texture-map");
+		return file.isEmpty() ? null : SceneFile.readTexture(file, getDouble(tag, "texture-scale", 1));
+	}
+
+	// Rotation axis of a texture, as written rather than normalised again so that it reads back exactly
+	private static Vector3 getAxis(Element tag) {
+		return new Vector3(getDouble(tag, "ax", 0), getDouble(tag, "ay", 1), getDouble(tag, "az", 0));
+	}
+
+	// Apply the coefficients and colour name written by SceneObject.materialXML, keeping the sphere's own
+	// coefficients where an attribute is missing
+	private static Sphere withMaterial(Sphere sphere, Element tag) {
+		sphere.phong_kD = getDouble(tag, "kD", sphere.phong_kD);
+		sphere.phong_kS = getDouble(tag, "kS", sphere.phong_kS);
+		sphere.phong_alpha = getDouble(tag, "alphaS", sphere.phong_alpha);
+		sphere.reflectivity = getDouble(tag, "reflectivity", sphere.reflectivity);
+		sphere.colorName = tag.getAttribute("colour");
+		return sphere;
+	}
+
+	private static ColorRGB getColour(Element tag) {
 
 		String hexString = tag.getAttribute("colour");
 		double red = Integer.parseInt(hexString.substring(1, 3), 16) / 255.0;
@@ -107,15 +256,15 @@ public class SceneLoader {
 		return new ColorRGB(red, green, blue);
 	}
 
-	private double getDouble(Element tag, String attribute, double fallback) {
+	private static double getDouble(Element tag, String attribute, double fallback) {
 		try {
 			return Double.parseDouble(tag.getAttribute(attribute));
 		} catch (NumberFormatException e) {
 			return fallback;
 		}
 	}
-	
-	private String getString(Element tag, String attribute){
+
+	private static String getString(Element tag, String attribute){
 		return tag.getAttribute(attribute);
 	}
 
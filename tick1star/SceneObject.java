@@ -16,16 +16,69 @@ public abstract class SceneObject {
         phong_kD = phong_kS = phong_alpha = reflectivity = 0;
     }
 
+    /*
+     * Ray parameter s of the nearest intersection O + sD of the ray with this object, or positive infinity if
+     * there is none. This is all the closest-hit search needs; the hit record is only built for the winner.
+     */
+    public abstract double intersect(Ray ray);
+
+    // As above for the ray from (ox, oy, oz) along (dx, dy, dz), overridden by objects that need no Ray for it
+    public double intersect(double ox, double oy, double oz, double dx, double dy, double dz) {
+        return intersect(new Ray(new Vector3(ox, oy, oz), new Vector3(dx, dy, dz)));
+    }
+
+    // Build the full hit record for the intersection at ray parameter s
+    public RaycastHit createHit(Ray ray, double s) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        Vector3 location = O.add(D.scale(s));
+        return new RaycastHit(this, s * D.magnitude(), location, getNormalAt(location));
+    }
+
     // Intersect this object with ray
-    public abstract RaycastHit intersectionWith(Ray ray);
+    public RaycastHit intersectionWith(Ray ray) {
+        double s = intersect(ray);
+        if (s == Double.POSITIVE_INFINITY) {
+            return new RaycastHit();
+        }
+        return createHit(ray, s);
+    }
 
     // Get normal to object at position
     public abstract Vector3 getNormalAt(Vector3 position);
 
+    // Whether the ray hits the object closer than maxDistance
+    public boolean occludes(Ray ray, double maxDistance) {
+        return intersect(ray) * ray.getDirection().magnitude() < maxDistance;
+    }
+
+    // As above for the ray from (ox, oy, oz) along (dx, dy, dz)
+    public boolean occludes(double ox, double oy, double oz, double dx, double dy, double dz, double maxDistance) {
+        return intersect(ox, oy, oz, dx, dy, dz) * Math.sqrt(dx * dx + dy * dy + dz * dz) < maxDistance;
+    }
+
+    // Axis-aligned box enclosing the object, or null if the object is unbounded
+    public AABB getBounds() {
+        return null;
+    }
+
     public ColorRGB getColour(Vector3 position) {
         return colour;
     }
 
+    // Colour averaged over a region about footprint wide around position, unfiltered unless textured
+    public ColorRGB getColour(Vector3 position, double footprint) {
+        return getColour(position);
+    }
+
+    // As above at (px, py, pz), storing red, green and blue in colour for tracers that do not allocate per hit
+    public void getColour(double px, double py, double pz, double footprint, double[] colour) {
+        ColorRGB filtered = getColour(new Vector3(px, py, pz), footprint);
+        colour[0] = filtered.r;
+        colour[1] = filtered.g;
+        colour[2] = filtered.b;
+    }
+
     public void setColour(ColorRGB colour) {
         this.colour = colour;
     }
@@ -52,5 +105,20 @@ public abstract class SceneObject {
 
     public abstract String toXML();
 
+    /*
+     * Colour and Phong coefficients as the attributes SceneLoader reads, the colour being colourName if the
+     * object has one. Numbers are written in full so that they read back exactly; colours have 8 bits per
+     * channel in XML.
+     */
+    protected String materialXML(String colourName) {
+        return String.format("colour=\"%s\" kD=\"%s\" kS=\"%s\" alphaS=\"%s\" reflectivity=\"%s\"",
+                colourName != null ? colourName : colour.toHex(), phong_kD, phong_kS, phong_alpha, reflectivity);
+    }
+
+    // Text for an XML attribute value
+    static String escapeXML(String text) {
+        return text.replace("&", "&amp;").replace("\"", "&quot;").replace("<", "&lt;");
+    }
+
     public abstract Sphere invert(Sphere base);
 }
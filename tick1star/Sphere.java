@@ -8,7 +8,8 @@ public class Sphere extends SceneObject {
     private final double SPHERE_ALPHA = 10;
     public double SPHERE_REFLECTIVITY = 0.2;
     public int label = -100;
-    public String colorName = "#FFFFFF";
+    // The colour as written to XML, or null to write the colour itself
+    public String colorName;
 
     // The world-space position of the sphere
     protected Vector3 position;
@@ -56,35 +57,34 @@ public class Sphere extends SceneObject {
      * Calculate intersection of the sphere with the ray. If the ray starts inside the sphere,
      * intersection with the surface is also found.
      */
-    public RaycastHit intersectionWith(Ray ray) {
-
-        // Get ray parameters
+    @Override
+    public double intersect(Ray ray) {
         Vector3 O = ray.getOrigin();
         Vector3 D = ray.getDirection();
+        return intersect(O.x, O.y, O.z, D.x, D.y, D.z);
+    }
+
+    // As above for the ray from (ox, oy, oz) along (dx, dy, dz)
+    @Override
+    public double intersect(double ox, double oy, double oz, double dx, double dy, double dz) {
 
-        // Get sphere parameters
-        Vector3 C = position;
-        double r = radius;
+        // Vector from the sphere centre to the ray origin
+        double ocx = ox - position.x, ocy = oy - position.y, ocz = oz - position.z;
 
         // Calculate quadratic coefficients
-        double a = D.dot(D);
-        double b = 2 * D.dot(O.subtract(C));
-        double c = (O.subtract(C)).dot(O.subtract(C)) - Math.pow(r, 2);
+        double a = dx * dx + dy * dy + dz * dz;
+        double b = 2 * (dx * ocx + dy * ocy + dz * ocz);
+        double c = (ocx * ocx + ocy * ocy + ocz * ocz) - Math.pow(radius, 2);
 
         double d = b * b - 4 * a * c;
         if (d >= 0) {
-            d = Math.sqrt(d);
-            double s = (-b - d) / (2 * a);
+            double s = (-b - Math.sqrt(d)) / (2 * a);
             if (s >= 0) {
-                double distance = s * D.magnitude();
-                Vector3 location = O.add(D.scale(s));
-                Vector3 normal = location.subtract(C).normalised();
-                normal.normalised();
-                return new RaycastHit(this, distance, location, getNormalAt(location));
+                return s;
             }
         }
 
-        return new RaycastHit();
+        return Double.POSITIVE_INFINITY;
     }
 
     @Override
@@ -103,7 +103,15 @@ public class Sphere extends SceneObject {
         return position.subtract(this.position).normalised();
     }
 
+    @Override
+    public AABB getBounds() {
+        // Padded slightly so that rays grazing the silhouette are not culled by rounding in the slab test
+        double r = radius * (1 + 1e-9) + 1e-12;
+        return new AABB(position.add(-r), position.add(r));
+    }
+
     public String toXML() {
-        return String.format("<sphere x=\"%f\" y=\"%f\" z=\"%f\" radius=\"%f\" colour=\"%s\" kd=\"0.8\" kS=\"1.2\" alphaS=\"50\"/>\n", position.x, position.y, position.z, radius, colorName);
+        return String.format("<sphere x=\"%s\" y=\"%s\" z=\"%s\" radius=\"%s\" %s/>\n", position.x, position.y,
+                position.z, radius, materialXML(colorName));
     }
 }
@@ -0,0 +1,87 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+/*
+ * Texture coordinates of the points of a sphere whose texture is turned about an axis. The rotation is
+ * expanded into a matrix once, rather than evaluating the sine and cosine of the same angle at every hit, and
+ * longitude and latitude are found with polynomial approximations of atan2 and asin instead of the library
+ * functions. Their errors are bounded by ATAN2_ERROR and ASIN_ERROR radians, well under a thousandth of a
+ * texel even for a 16k wide texture.
+ */
+public class SphereMapping {
+
+    public static final double ATAN2_ERROR = 2e-8;
+    public static final double ASIN_ERROR = 3e-8;
+
+    // Rotation the matrix was built for, so that spheres can tell when theirs has been changed
+    final Vector3 axis;
+    final double angle;
+
+    private final double m00, m01, m02, m10, m11, m12, m20, m21, m22;
+
+    // Rotation by angle about axis, of unit length, as performed by Vector3.rotateVector
+    public SphereMapping(Vector3 axis, double angle) {
+        this.axis = axis;
+        this.angle = angle;
+        double u = axis.x, v = axis.y, w = axis.z;
+        double c = Math.cos(angle), s = Math.sin(angle), t = 1 - c;
+        m00 = u * u * t + c;
+        m01 = u * v * t - w * s;
+        m02 = u * w * t + v * s;
+        m10 = v * u * t + w * s;
+        m11 = v * v * t + c;
+        m12 = v * w * t - u * s;
+        m20 = w * u * t - v * s;
+        m21 = w * v * t + u * s;
+        m22 = w * w * t + c;
+    }
+
+    public Vector3 rotate(Vector3 vector) {
+        return new Vector3(m00 * vector.x + m01 * vector.y + m02 * vector.z,
+                m10 * vector.x + m11 * vector.y + m12 * vector.z,
+                m20 * vector.x + m21 * vector.y + m22 * vector.z);
+    }
+
+    // Horizontal texture coordinate in (0, 1] of the direction (x, y, z) from the centre, of any length
+    public double u(double x, double y, double z) {
+        double rx = m00 * x + m01 * y + m02 * z;
+        double rz = m20 * x + m21 * y + m22 * z;
+        double alpha = atan2(rz, -rx);
+        if (alpha < 0) alpha += 2 * Math.PI;
+        return 1 - alpha / (2 * Math.PI);
+    }
+
+    // Vertical texture coordinate in [0, 1] of the direction (x, y, z) from the centre, 0 at the north pole
+    public double v(double x, double y, double z) {
+        double ry = (m10 * x + m11 * y + m12 * z) / Math.sqrt(x * x + y * y + z * z);
+        return 0.5 - asin(Math.max(-1, Math.min(1, ry))) / Math.PI;
+    }
+
+    // Arctangent of y / x in [-pi, pi], from that of the smaller over the larger magnitude
+    public static double atan2(double y, double x) {
+        double ax = Math.abs(x), ay = Math.abs(y);
+        double a;
+        if (ay <= ax) {
+            a = ax == 0 ? 0 : atan(ay / ax);
+        } else {
+            a = Math.PI / 2 - atan(ax / ay);
+        }
+        if (x < 0) a = Math.PI - a;
+        return y < 0 ? -a : a;
+    }
+
+    // Arctangent of x in [-1, 1] (Abramowitz and Stegun 4.4.49)
+    private static double atan(double x) {
+        double x2 = x * x;
+        return x * (1 + x2 * (-0.3333314528 + x2 * (0.1999355085 + x2 * (-0.1420889944 + x2 * (0.1065626393
+                + x2 * (-0.0752896400 + x2 * (0.0429096138 + x2 * (-0.0161657367 + x2 * 0.0028662257))))))));
+    }
+
+    // Arcsine of x in [-1, 1] (Abramowitz and Stegun 4.4.46)
+    public static double asin(double x) {
+        double ax = Math.abs(x);
+        double p = 1.5707963050 + ax * (-0.2145988016 + ax * (0.0889789874 + ax * (-0.0501743046
+                + ax * (0.0308918810 + ax * (-0.0170881256 + ax * (0.0066700901 + ax * -0.0012624911))))));
+        double a = Math.PI / 2 - Math.sqrt(1 - ax) * p;
+        return x < 0 ? -a : a;
+    }
+}
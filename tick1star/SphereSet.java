@@ -0,0 +1,142 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import java.util.List;
+
+/*
+ * Spheres packed into parallel primitive arrays, so that a ray can be tested against many of them in a tight
+ * loop without virtual calls or temporary objects. Only the index and distance of the nearest hit are
+ * produced; the full RaycastHit is built by the winning sphere itself.
+ */
+public class SphereSet {
+
+    // Centres and squared radii of the spheres
+    final double[] centerX, centerY, centerZ, radiusSquared;
+
+    // Objects providing material and shading of every sphere
+    final SceneObject[] objects;
+
+    // Data-parallel implementation of intersect, see incubator/SphereSetVectorKernel
+    interface VectorKernel {
+        int lanes();
+
+        int intersect(SphereSet set, double ox, double oy, double oz, double dx, double dy, double dz,
+                      double magnitude, int first, int end, double[] nearest);
+    }
+
+    // The vector kernel, or null if jdk.incubator.vector is unavailable or disabled with -Dtick1star.vector=false
+    private static final VectorKernel VECTOR_KERNEL = loadVectorKernel();
+
+    private static VectorKernel loadVectorKernel() {
+        if (!Boolean.parseBoolean(System.getProperty("tick1star.vector", "true"))) return null;
+        try {
+            return (VectorKernel) Class.forName(SphereSet.class.getPackage().getName() + ".SphereSetVectorKernel")
+                    .getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            // Not compiled in, or the module was not added at run time
+            return null;
+        }
+    }
+
+    public static boolean isVectorized() {
+        return VECTOR_KERNEL != null;
+    }
+
+    // Number of spheres tested at once by intersect
+    public static int getVectorLanes() {
+        return VECTOR_KERNEL != null ? VECTOR_KERNEL.lanes() : 1;
+    }
+
+    public SphereSet(List<? extends SceneObject> spheres) {
+        int n = spheres.size();
+        centerX = new double[n];
+        centerY = new double[n];
+        centerZ = new double[n];
+        radiusSquared = new double[n];
+        objects = new SceneObject[n];
+        for (int i = 0; i < n; i++) {
+            Sphere sphere = (Sphere) spheres.get(i);
+            centerX[i] = sphere.position.x;
+            centerY[i] = sphere.position.y;
+            centerZ[i] = sphere.position.z;
+            radiusSquared[i] = Math.pow(sphere.radius, 2);
+            objects[i] = sphere;
+        }
+    }
+
+    // Whether the object intersects rays like a plain Sphere and can therefore be packed
+    public static boolean canPack(SceneObject object) {
+        return object instanceof Sphere && !(object instanceof InsideOutSphere);
+    }
+
+    public int size() {
+        return objects.length;
+    }
+
+    public SceneObject getObject(int index) {
+        return objects[index];
+    }
+
+    /*
+     * Test the ray O + sD against spheres [first, end) and return the index of the nearest one hit closer than
+     * nearest[0], or -1 if there is none. Distances are s * |D| like RaycastHit.getDistance(), and nearest[0]
+     * is updated to the distance of the returned sphere.
+     */
+    public int intersect(double ox, double oy, double oz, double dx, double dy, double dz, double magnitude,
+                         int first, int end, double[] nearest) {
+        if (VECTOR_KERNEL != null && end - first >= VECTOR_KERNEL.lanes()) {
+            return VECTOR_KERNEL.intersect(this, ox, oy, oz, dx, dy, dz, magnitude, first, end, nearest);
+        }
+        return intersectScalar(ox, oy, oz, dx, dy, dz, magnitude, first, end, nearest);
+    }
+
+    int intersectScalar(double ox, double oy, double oz, double dx, double dy, double dz, double magnitude,
+                        int first, int end, double[] nearest) {
+        double a = dx * dx + dy * dy + dz * dz;
+        double best = nearest[0];
+        int bestIndex = -1;
+        for (int i = first; i < end; i++) {
+            double ocx = ox - centerX[i], ocy = oy - centerY[i], ocz = oz - centerZ[i];
+            double b = 2 * (dx * ocx + dy * ocy + dz * ocz);
+            double c = (ocx * ocx + ocy * ocy + ocz * ocz) - radiusSquared[i];
+            double d = b * b - 4 * a * c;
+            if (d >= 0) {
+                double s = (-b - Math.sqrt(d)) / (2 * a);
+                if (s >= 0) {
+                    double distance = s * magnitude;
+                    if (distance < best) {
+                        best = distance;
+                        bestIndex = i;
+                    }
+                }
+            }
+        }
+        nearest[0] = best;
+        return bestIndex;
+    }
+
+    // Whether any of the spheres [first, end) is hit closer than maxDistance, stopping at the first one found
+    public boolean occluded(double ox, double oy, double oz, double dx, double dy, double dz, double magnitude,
+                            int first, int end, double maxDistance) {
+        double a = dx * dx + dy * dy + dz * dz;
+        for (int i = first; i < end; i++) {
+            double ocx = ox - centerX[i], ocy = oy - centerY[i], ocz = oz - centerZ[i];
+            double b = 2 * (dx * ocx + dy * ocy + dz * ocz);
+            double c = (ocx * ocx + ocy * ocy + ocz * ocz) - radiusSquared[i];
+            double d = b * b - 4 * a * c;
+            if (d >= 0) {
+                double s = (-b - Math.sqrt(d)) / (2 * a);
+                if (s >= 0 && s * magnitude < maxDistance) return true;
+            }
+        }
+        return false;
+    }
+
+    // Nearest hit of the ray against every sphere in the set
+    public RaycastHit findClosestIntersection(Ray ray) {
+        Vector3 O = ray.getOrigin();
+        Vector3 D = ray.getDirection();
+        double[] nearest = {Double.POSITIVE_INFINITY};
+        int index = intersect(O.x, O.y, O.z, D.x, D.y, D.z, D.magnitude(), 0, objects.length, nearest);
+        return index < 0 ? new RaycastHit() : objects[index].intersectionWith(ray);
+    }
+}
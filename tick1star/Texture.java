@@ -0,0 +1,510 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DirectColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/*
+ * Image decoded into one packed 0xRRGGBB int per texel, rather than a ColorRGB (and its Vector3) per texel.
+ * Textures are immutable, so one decoded image can be shared by every sphere that uses it; brightened copies
+ * share the texels and only differ in scale.
+ *
+ * A mip pyramid is built when the texture is loaded, each level a box-filtered copy of the one before at half
+ * the width and height, down to 1 x 1. Sampling with a footprint blends the two levels whose texels are
+ * closest to its size, so a texture that covers few pixels is averaged rather than point sampled.
+ *
+ * Large images, such as high resolution environment maps, are kept off the heap: the first time one is read
+ * its texels are decoded into a file next to the image (the image name followed by .texels), and that file is
+ * memory-mapped on every later read, so the operating system pages in only the texels that are used. Images in
+ * directories that cannot be written to have their texel file in the cache directory instead, and are decoded
+ * onto the heap if that cannot be written to either.
+ *
+ * Texel file layout, big-endian:
+ *   header  magic, version, width, height (ints), size and modification time in ms of the image (longs)
+ *   texels  packed colours (ints) of each level of the mip pyramid in turn, from width * height, row by row
+ */
+public class Texture {
+
+    public static final String TEXELS_EXTENSION = ".texels";
+
+    // Images of at least this many texels are mapped rather than decoded onto the heap
+    public static final long MAPPED_TEXELS = 1L << 23;
+
+    private static final int MAGIC = 0x54315458;
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4 * 4 + 2 * 8;
+
+    // Texels copied at a time from images that cannot be decoded straight into a texel file
+    private static final int STRIP_TEXELS = 1 << 22;
+
+    private static final double LN_2 = Math.log(2);
+
+    // Where texel files go when they cannot be written next to their image
+    private static volatile Path cacheDirectory = Paths.get(System.getProperty("java.io.tmpdir"), "tick1-texels");
+
+    // Size and texels of each level of the mip pyramid, the full resolution image first
+    private final int[] widths, heights;
+    private final IntBuffer[] levels;
+
+    // Factor applied to every texel colour
+    private final double scale;
+
+    // Image the texels were read from, or null if they were built in memory
+    private final String source;
+
+    public Texture(int width, int height, int[] texels, double scale) {
+        this(width, height, withLevels(width, height, texels), scale, null);
+    }
+
+    // The levels stored one after the other in pyramid, either on the heap or mapped from a texel file
+    private Texture(int width, int height, IntBuffer pyramid, double scale, String source) {
+        int count = levelCount(width, height);
+        widths = new int[count];
+        heights = new int[count];
+        levels = new IntBuffer[count];
+        int offset = 0;
+        for (int level = 0; level < count; level++) {
+            widths[level] = width;
+            heights[level] = height;
+            levels[level] = pyramid.duplicate().position(offset).slice();
+            offset += width * height;
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+        }
+        this.scale = scale;
+        this.source = source;
+    }
+
+    private Texture(Texture texture, double scale) {
+        widths = texture.widths;
+        heights = texture.heights;
+        levels = texture.levels;
+        source = texture.source;
+        this.scale = scale;
+    }
+
+    public static void setCacheDirectory(Path directory) {
+        cacheDirectory = directory;
+    }
+
+    public static Path getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    // The image in file, mapped from its texel file if it is large or has already been converted
+    public static Texture read(String file) throws IOException {
+        Path image = Paths.get(file);
+        Texture mapped = mapIfCurrent(image);
+        if (mapped != null) return mapped;
+
+        ImageReader reader = open(image);
+        try {
+            int width = reader.getWidth(0), height = reader.getHeight(0);
+            if ((long) width * height < MAPPED_TEXELS) {
+                return decode(reader, file);
+            }
+            try {
+                return mapConverted(image, convert(reader, image));
+            } catch (IOException e) {
+                System.err.println("Can't write a texel file for " + image + ", decoding it onto the heap");
+                return decode(reader, file);
+            }
+        } finally {
+            close(reader);
+        }
+    }
+
+    // The image in file mapped from its texel file, which is written first unless it is up to date
+    public static Texture map(String file) throws IOException {
+        Path image = Paths.get(file);
+        Texture mapped = mapIfCurrent(image);
+        if (mapped != null) return mapped;
+
+        ImageReader reader = open(image);
+        try {
+            return mapConverted(image, convert(reader, image));
+        } finally {
+            close(reader);
+        }
+    }
+
+    // Texel file of the image in its own directory
+    private static Path siblingTexels(Path image) {
+        return Paths.get(image + TEXELS_EXTENSION);
+    }
+
+    // Texel file of the image in the cache directory, named after its full path so that images do not collide
+    private static Path cachedTexels(Path image) {
+        Path absolute = image.toAbsolutePath().normalize();
+        return cacheDirectory.resolve(absolute.getFileName() + "-"
+                + Integer.toHexString(absolute.toString().hashCode()) + TEXELS_EXTENSION);
+    }
+
+    // The texels of the image from whichever texel file is current, or null if neither is
+    private static Texture mapIfCurrent(Path image) throws IOException {
+        Texture mapped = mapIfCurrent(image, siblingTexels(image));
+        return mapped != null ? mapped : mapIfCurrent(image, cachedTexels(image));
+    }
+
+    // Convert the image next to itself if its directory can be written to, otherwise in the cache directory
+    private static Path convert(ImageReader reader, Path image) throws IOException {
+        Path sibling = siblingTexels(image);
+        if (Files.isWritable(sibling.toAbsolutePath().getParent())) {
+            try {
+                convert(reader, image, sibling);
+                return sibling;
+            } catch (FileSystemException e) {
+                // A read-only file system, which the permissions do not show
+            }
+        }
+        Path cached = cachedTexels(image);
+        Files.createDirectories(cached.getParent());
+        convert(reader, image, cached);
+        return cached;
+    }
+
+    private static Texture decode(ImageReader reader, String file) throws IOException {
+        int width = reader.getWidth(0), height = reader.getHeight(0);
+        BufferedImage decoded = reader.read(0);
+        int[] texels = decoded.getRGB(0, 0, width, height, null, 0, width);
+        for (int i = 0; i < texels.length; i++) {
+            texels[i] &= 0xffffff;
+        }
+        return new Texture(width, height, withLevels(width, height, texels), 1, file);
+    }
+
+    private static ImageReader open(Path image) throws IOException {
+        if (!Files.isReadable(image)) {
+            throw new IOException("Can't read texture " + image);
+        }
+        ImageInputStream input = ImageIO.createImageInputStream(image.toFile());
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            throw new IOException("Unsupported image format: " + image);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input);
+        return reader;
+    }
+
+    private static void close(ImageReader reader) throws IOException {
+        ((ImageInputStream) reader.getInput()).close();
+        reader.dispose();
+    }
+
+    /*
+     * Decode the image into a texel file in a single pass. Images with 8-bit RGB or RGBA pixels, which includes
+     * the usual PNG and JPEG files, are decoded straight into the mapped file, so images far larger than the
+     * heap can be converted; others are decoded onto the heap first. The file is written under a temporary name
+     * and then moved into place, so an interrupted conversion never leaves a texel file that looks complete.
+     */
+    private static void convert(ImageReader reader, Path image, Path cached) throws IOException {
+        int width = reader.getWidth(0), height = reader.getHeight(0);
+        long size = HEADER_SIZE + 4 * pyramidSize(width, height);
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Texture too large for a single file mapping: " + image);
+        }
+
+        Path temporary = cached.resolveSibling(cached.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+                buffer.putInt(MAGIC).putInt(VERSION).putInt(width).putInt(height);
+                buffer.putLong(Files.size(image)).putLong(Files.getLastModifiedTime(image).toMillis());
+
+                IntBuffer texels = buffer.asIntBuffer();
+                DirectColorModel model = packedModel(reader);
+                if (model != null) {
+                    WritableRaster raster = Raster.createWritableRaster(model.createCompatibleSampleModel(width,
+                            height), new TexelDataBuffer(texels, width * height), null);
+                    ImageReadParam param = reader.getDefaultReadParam();
+                    param.setDestination(new BufferedImage(model, raster, false, null));
+                    reader.read(0, param);
+                    if (model.hasAlpha()) {
+                        for (int i = 0; i < width * height; i++) {
+                            texels.put(i, texels.get(i) & 0xffffff);
+                        }
+                    }
+                } else {
+                    BufferedImage decoded = reader.read(0);
+                    int stripRows = Math.max(1, STRIP_TEXELS / width);
+                    for (int row = 0; row < height; row += stripRows) {
+                        int rows = Math.min(stripRows, height - row);
+                        int[] strip = decoded.getRGB(0, row, width, rows, null, 0, width);
+                        for (int i = 0; i < strip.length; i++) {
+                            strip[i] &= 0xffffff;
+                        }
+                        texels.put(strip);
+                    }
+                }
+                buildLevels(texels, width, height);
+                buffer.force();
+            }
+            Files.move(temporary, cached, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /*
+     * A colour model packing texels as 0xRRGGBB, with alpha in the top byte if the image has it, or null if the
+     * reader cannot decode the image to 8-bit RGB or RGBA. Readers store samples by band in the order of the
+     * colour components, so any such image type can be decoded into the packed one.
+     */
+    private static DirectColorModel packedModel(ImageReader reader) throws IOException {
+        for (Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext(); ) {
+            ImageTypeSpecifier type = types.next();
+            ColorModel model = type.getColorModel();
+            if (model instanceof IndexColorModel || !model.getColorSpace().isCS_sRGB()
+                    || model.isAlphaPremultiplied()) {
+                continue;
+            }
+            int[] sizes = type.getSampleModel().getSampleSize();
+            if (Arrays.stream(sizes).anyMatch(size -> size != 8)) continue;
+            if (sizes.length == 3) return new DirectColorModel(24, 0xff0000, 0xff00, 0xff);
+            if (sizes.length == 4 && model.hasAlpha()) {
+                return new DirectColorModel(32, 0xff0000, 0xff00, 0xff, 0xff000000);
+            }
+        }
+        return null;
+    }
+
+    // Texels of a texel file as the pixels of an image, so that an image reader can decode into the file
+    private static final class TexelDataBuffer extends DataBuffer {
+        private final IntBuffer texels;
+
+        TexelDataBuffer(IntBuffer texels, int size) {
+            super(TYPE_INT, size);
+            this.texels = texels;
+        }
+
+        @Override
+        public int getElem(int bank, int i) {
+            return texels.get(i);
+        }
+
+        @Override
+        public void setElem(int bank, int i, int value) {
+            texels.put(i, value);
+        }
+    }
+
+    private static Texture mapConverted(Path image, Path cached) throws IOException {
+        Texture mapped = mapIfCurrent(image, cached);
+        if (mapped == null) {
+            throw new IOException("Texture changed while converting: " + image);
+        }
+        return mapped;
+    }
+
+    /*
+     * The texels in cached, or null if there is no complete texel file for the image as it is now. A texel file
+     * whose image has been removed is still used, so converted images need not be kept.
+     */
+    private static Texture mapIfCurrent(Path image, Path cached) throws IOException {
+        if (!Files.exists(cached)) return null;
+        try (FileChannel channel = FileChannel.open(cached, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            int width = buffer.getInt(), height = buffer.getInt();
+            long imageSize = buffer.getLong(), imageModified = buffer.getLong();
+            if (width <= 0 || height <= 0 || size != HEADER_SIZE + 4 * pyramidSize(width, height)) return null;
+            if (Files.exists(image) && (imageSize != Files.size(image)
+                    || imageModified != Files.getLastModifiedTime(image).toMillis())) {
+                return null;
+            }
+            return new Texture(width, height, buffer.asIntBuffer(), 1, image.toString());
+        }
+    }
+
+    private static int levelCount(int width, int height) {
+        int count = 1;
+        while (width > 1 || height > 1) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            count++;
+        }
+        return count;
+    }
+
+    // Number of texels in all levels of the pyramid of an image
+    private static long pyramidSize(int width, int height) {
+        long size = (long) width * height;
+        while (width > 1 || height > 1) {
+            width = Math.max(1, width / 2);
+            height = Math.max(1, height / 2);
+            size += (long) width * height;
+        }
+        return size;
+    }
+
+    private static IntBuffer withLevels(int width, int height, int[] texels) {
+        long size = pyramidSize(width, height);
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Texture too large: " + width + " x " + height);
+        }
+        IntBuffer pyramid = IntBuffer.wrap(Arrays.copyOf(texels, (int) size));
+        buildLevels(pyramid, width, height);
+        return pyramid;
+    }
+
+    /*
+     * Fill in the levels after the first of the pyramid, each texel the average of the 2 x 2 texels it covers in
+     * the level before. A trailing odd row or column is dropped, except when it is all that is left.
+     */
+    private static void buildLevels(IntBuffer pyramid, int width, int height) {
+        int source = 0;
+        while (width > 1 || height > 1) {
+            int target = source + width * height;
+            int nextWidth = Math.max(1, width / 2), nextHeight = Math.max(1, height / 2);
+            for (int y = 0; y < nextHeight; y++) {
+                int row0 = source + 2 * y * width, row1 = source + Math.min(2 * y + 1, height - 1) * width;
+                for (int x = 0; x < nextWidth; x++) {
+                    int x0 = 2 * x, x1 = Math.min(2 * x + 1, width - 1);
+                    int a = pyramid.get(row0 + x0), b = pyramid.get(row0 + x1);
+                    int c = pyramid.get(row1 + x0), d = pyramid.get(row1 + x1);
+                    int red = ((a >>> 16) + (b >>> 16) + (c >>> 16) + (d >>> 16) + 2) >> 2;
+                    int green = (((a >>> 8) & 0xff) + ((b >>> 8) & 0xff) + ((c >>> 8) & 0xff)
+                            + ((d >>> 8) & 0xff) + 2) >> 2;
+                    int blue = ((a & 0xff) + (b & 0xff) + (c & 0xff) + (d & 0xff) + 2) >> 2;
+                    pyramid.put(target + y * nextWidth + x, red << 16 | green << 8 | blue);
+                }
+            }
+            source = target;
+            width = nextWidth;
+            height = nextHeight;
+        }
+    }
+
+    // The same image with every colour multiplied by factor
+    public Texture scaled(double factor) {
+        return new Texture(this, scale * factor);
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    // The image file the texture can be read again from, or null if it was built in memory
+    public String getSource() {
+        return source;
+    }
+
+    public int getWidth() {
+        return widths[0];
+    }
+
+    public int getHeight() {
+        return heights[0];
+    }
+
+    public int getLevelCount() {
+        return levels.length;
+    }
+
+    public boolean isMapped() {
+        return levels[0].isDirect();
+    }
+
+    // Colour of the texel in column u and row v, channels of 8 bits mapping to [0, 1) like the original maps
+    public ColorRGB getColour(int u, int v) {
+        int texel = levels[0].get(v * widths[0] + u);
+        double red = (texel >>> 16) / 256.0, green = ((texel >>> 8) & 0xff) / 256.0, blue = (texel & 0xff) / 256.0;
+        return new ColorRGB(red * scale, green * scale, blue * scale);
+    }
+
+    // Packed 0xRRGGBB texel in column u and row v of the full resolution image
+    public int getTexel(int u, int v) {
+        return levels[0].get(v * widths[0] + u);
+    }
+
+    /*
+     * Colour at (u, v) in [0, 1], u wrapping around and v clamped at the edges, averaged over a region footprint
+     * wide as a fraction of the texture width. Levels are blended trilinearly, and a footprint smaller than a
+     * texel of the full resolution image is interpolated bilinearly within it. A footprint of 0, from rays that
+     * do not track one, takes the nearest texel like getColour(u, v).
+     */
+    public ColorRGB sample(double u, double v, double footprint) {
+        double[] colour = new double[3];
+        sample(u, v, footprint, colour);
+        return new ColorRGB(colour[0], colour[1], colour[2]);
+    }
+
+    // As above, storing red, green and blue in colour rather than allocating a ColorRGB
+    public void sample(double u, double v, double footprint, double[] colour) {
+        colour[0] = colour[1] = colour[2] = 0;
+        if (!(footprint > 0)) {
+            int x = Math.min((int) (widths[0] * u), widths[0] - 1);
+            int y = Math.min((int) (heights[0] * v), heights[0] - 1);
+            addTexel(levels[0].get(y * widths[0] + x), 1, colour);
+        } else {
+            double level = Math.log(footprint * widths[0]) / LN_2;
+            if (!(level > 0)) {
+                addBilinear(0, u, v, 1, colour);
+            } else if (level >= levels.length - 1) {
+                addBilinear(levels.length - 1, u, v, 1, colour);
+            } else {
+                int lower = (int) level;
+                double t = level - lower;
+                addBilinear(lower, u, v, 1 - t, colour);
+                addBilinear(lower + 1, u, v, t, colour);
+            }
+        }
+        colour[0] *= scale;
+        colour[1] *= scale;
+        colour[2] *= scale;
+    }
+
+    // Add weight times the bilinear interpolation of the texels of level around (u, v) to sum
+    private void addBilinear(int level, double u, double v, double weight, double[] sum) {
+        int width = widths[level], height = heights[level];
+        double x = u * width - 0.5, y = v * height - 0.5;
+        int x0 = (int) Math.floor(x), y0 = (int) Math.floor(y);
+        double fx = x - x0, fy = y - y0;
+        int x1 = Math.floorMod(x0 + 1, width), y1 = Math.min(Math.max(y0 + 1, 0), height - 1);
+        x0 = Math.floorMod(x0, width);
+        y0 = Math.min(Math.max(y0, 0), height - 1);
+
+        IntBuffer texels = levels[level];
+        addTexel(texels.get(y0 * width + x0), weight * (1 - fx) * (1 - fy), sum);
+        addTexel(texels.get(y0 * width + x1), weight * fx * (1 - fy), sum);
+        addTexel(texels.get(y1 * width + x0), weight * (1 - fx) * fy, sum);
+        addTexel(texels.get(y1 * width + x1), weight * fx * fy, sum);
+    }
+
+    private static void addTexel(int texel, double weight, double[] sum) {
+        sum[0] += weight * ((texel >>> 16) / 256.0);
+        sum[1] += weight * (((texel >>> 8) & 0xff) / 256.0);
+        sum[2] += weight * ((texel & 0xff) / 256.0);
+    }
+
+    // Heap memory used by the texels; mapped texels are paged in and out by the operating system instead
+    public long getSizeBytes() {
+        return isMapped() ? 0 : 4 * pyramidSize(widths[0], heights[0]);
+    }
+}
@@ -0,0 +1,132 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/*
+ * Decoded textures keyed by file path, so that every sphere using an image shares one copy and the image is
+ * only read once. The least recently used textures are dropped once the total size exceeds the memory budget;
+ * spheres already holding a dropped texture keep it, the next request for it reads the file again. Textures
+ * mapped from texel files are not on the heap, so they do not count towards the budget.
+ *
+ * Safe to use from several threads. A texture requested while another thread is reading it waits for that
+ * read instead of starting its own.
+ */
+public class TextureCache {
+
+    public static final long DEFAULT_BUDGET_BYTES = 1L << 30;
+
+    private static final TextureCache shared = new TextureCache(DEFAULT_BUDGET_BYTES);
+
+    // Textures being read or read, in order of last use
+    private final LinkedHashMap<String, FutureTask<Texture>> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long budgetBytes;
+    private long sizeBytes;
+    private long hits, misses, evictions;
+
+    public TextureCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    // The cache used by the textured sphere constructors that take a file name
+    public static TextureCache getShared() {
+        return shared;
+    }
+
+    public Texture get(String file) throws IOException {
+        FutureTask<Texture> entry;
+        boolean reader = false;
+        synchronized (this) {
+            entry = entries.get(file);
+            if (entry != null) {
+                hits++;
+            } else {
+                misses++;
+                entry = new FutureTask<>(() -> Texture.read(file));
+                entries.put(file, entry);
+                reader = true;
+            }
+        }
+
+        // The file is read outside the lock, so other textures can be fetched meanwhile
+        if (reader) {
+            entry.run();
+        }
+        try {
+            Texture texture = entry.get();
+            if (reader) {
+                synchronized (this) {
+                    // Unless the cache was cleared while reading
+                    if (entries.get(file) == entry) {
+                        sizeBytes += texture.getSizeBytes();
+                        evict(file);
+                    }
+                }
+            }
+            return texture;
+        } catch (ExecutionException e) {
+            synchronized (this) {
+                entries.remove(file, entry);
+            }
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException("Error reading texture " + file, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading texture " + file);
+        }
+    }
+
+    // Drop least recently used textures other than keep until the cache fits its budget
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, FutureTask<Texture>>> iterator = entries.entrySet().iterator();
+        while (sizeBytes > budgetBytes && iterator.hasNext()) {
+            Map.Entry<String, FutureTask<Texture>> entry = iterator.next();
+            FutureTask<Texture> task = entry.getValue();
+            // Textures still being read are not counted yet, and failed reads are removed by their reader
+            if (entry.getKey().equals(keep) || !task.isDone()) continue;
+            try {
+                sizeBytes -= task.get().getSizeBytes();
+                iterator.remove();
+                evictions++;
+            } catch (ExecutionException | InterruptedException e) {
+                // Not counted in the size
+            }
+        }
+    }
+
+    public synchronized void setBudget(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+        evict(null);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        sizeBytes = 0;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public synchronized String getStatistics() {
+        return String.format("Texture cache: %d textures, %.1f of %.1f MB, %d hits, %d misses, %d evictions",
+                entries.size(), sizeBytes / 1e6, budgetBytes / 1e6, hits, misses, evictions);
+    }
+}
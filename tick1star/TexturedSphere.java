@@ -1,19 +1,18 @@
 package uk.ac.cam.cl.gfxintro.bh525.tick1star;
 
-import javax.imageio.ImageIO;
-import java.awt.image.BufferedImage;
-import java.io.File;
 import java.io.IOException;
 
 public class TexturedSphere extends Sphere {
 
-    private ColorRGB[][] textureMap;
-    private int bumpMapHeight;
-    private int bumpMapWidth;
+    // Shared with the other spheres using the same image, or null to use the sphere's colour
+    private Texture textureMap;
     public double randomAngle = 4.3;
     public Vector3 randomAxis = new Vector3(-1, 2, -1).normalised();
     String texture;
 
+    // Texture coordinates for the rotation, immutable so it can be replaced while other threads use it
+    private SphereMapping mapping;
+
     public TexturedSphere(Vector3 position, double radius, ColorRGB colour, String bumpMapImg) {
         super(position, radius, colour);
         this.texture = bumpMapImg;
@@ -21,44 +20,13 @@ public class TexturedSphere extends Sphere {
         if (Math.abs(radius - 0.58) < 0.001) {
             randomAngle = 0.7;
         }
-        try {
-            BufferedImage inputImg = ImageIO.read(new File(bumpMapImg));
-            bumpMapHeight = inputImg.getHeight();
-            bumpMapWidth = inputImg.getWidth();
-            textureMap = new ColorRGB[bumpMapHeight][bumpMapWidth];
-            for (int row = 0; row < bumpMapHeight; row++) {
-                for (int col = 0; col < bumpMapWidth; col++) {
-                    int color = inputImg.getRGB(col, row);
-                    int blue = color & 0xff;
-                    int green = (color & 0xff00) >> 8;
-                    int red = (color & 0xff0000) >> 16;
-                    double scale = 256;
-                    textureMap[row][col] = new ColorRGB((double) red / scale, (double) green / scale, (double) blue / scale);
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Error creating bump map");
-            e.printStackTrace();
-        }
+        textureMap = calculateTextureMap(bumpMapImg);
     }
 
-    public static ColorRGB[][] calculateTextureMap(String bumpMapImg) {
+    // The image in the shared texture cache, or null if it cannot be read
+    public static Texture calculateTextureMap(String bumpMapImg) {
         try {
-            BufferedImage inputImg = ImageIO.read(new File(bumpMapImg));
-            int height = inputImg.getHeight();
-            int width = inputImg.getWidth();
-            ColorRGB[][] map = new ColorRGB[height][width];
-            for (int row = 0; row < height; row++) {
-                for (int col = 0; col < width; col++) {
-                    int color = inputImg.getRGB(col, row);
-                    int blue = color & 0xff;
-                    int green = (color & 0xff00) >> 8;
-                    int red = (color & 0xff0000) >> 16;
-                    double scale = 256;
-                    map[row][col] = new ColorRGB((double) red / scale, (double) green / scale, (double) blue / scale);
-                }
-            }
-            return map;
+            return TextureCache.getShared().get(bumpMapImg);
         } catch (IOException e) {
             System.err.println("Error creating bump map");
             e.printStackTrace();
@@ -66,16 +34,13 @@ public class TexturedSphere extends Sphere {
         return null;
     }
 
-    public TexturedSphere(Vector3 position, double radius, ColorRGB colour, ColorRGB[][] map, String texture) {
+    public TexturedSphere(Vector3 position, double radius, ColorRGB colour, Texture map, String texture) {
         super(position, radius, colour);
         this.texture = texture;
         if (radius < Math.sqrt(0.5) - 0.01 && Math.abs(radius - 0.58) > 0.001) rotateRandomly();
         if (Math.abs(radius - 0.58) < 0.001) {
             randomAngle = 0.7;
         }
-        //BufferedImage inputImg = ImageIO.read(new File(bumpMapImg));
-        bumpMapHeight = map.length;
-        bumpMapWidth = map[0].length;
         textureMap = map;
     }
 
@@ -85,31 +50,78 @@ public class TexturedSphere extends Sphere {
         if (Math.abs(radius - 0.58) < 0.001) {
             randomAngle = 0.7;
         }
-        //BufferedImage inputImg = ImageIO.read(new File(bumpMapImg));
-        bumpMapHeight = 1;
-        bumpMapWidth = 1;
-        textureMap = new ColorRGB[][]{{sphere.colour}};
     }
 
+    // The texture, or null if the sphere has the colour of its material
+    public Texture getTextureMap() {
+        return textureMap;
+    }
+
+    // The image the texture was read from, which is what SceneLoader expects, or the name it was given
+    private String getTexturePath() {
+        return textureMap != null && textureMap.getSource() != null ? textureMap.getSource() : texture;
+    }
+
+    // Random orientation determined by the sphere's position, so the same scene is always built the same way
     public void rotateRandomly() {
-        randomAngle = 2 * Math.PI * Math.random();
-        randomAxis = Vector3.randomInsideUnitSphere().normalised();
+        Sampler sampler = new Sampler(Sampler.seedOf(position));
+        randomAngle = 2 * Math.PI * sampler.nextDouble();
+        randomAxis = Vector3.randomInsideUnitSphere(sampler).normalised();
+    }
+
+    // The mapping for the current rotation, rebuilt if randomAxis or randomAngle have been changed
+    private SphereMapping getMapping() {
+        SphereMapping current = mapping;
+        if (current == null || current.axis != randomAxis || current.angle != randomAngle) {
+            mapping = current = new SphereMapping(randomAxis, randomAngle);
+        }
+        return current;
     }
 
     // Get normal to surface at position
     public ColorRGB getColour(Vector3 position) {
-        Vector3 normal = Vector3.rotateVector(super.getNormalAt(position), randomAxis, randomAngle).normalised();
-        //normal = super.getNormalAt(position);
-        double alpha = (Math.atan2(normal.z, -normal.x) + 2 * Math.PI) % (2 * Math.PI);
-        double beta = Math.asin(normal.y) + Math.PI / 2;
-        double alphaScaled = 1 - (alpha) / (2 * Math.PI);
-        double betaScaled = 1 - (beta) / (Math.PI);
-        int u = (int) (bumpMapWidth * alphaScaled);
-        int v = (int) (bumpMapHeight * betaScaled);
-        return textureMap[v][u];
+        if (textureMap == null) {
+            return colour;
+        }
+        SphereMapping mapping = getMapping();
+        double x = position.x - this.position.x, y = position.y - this.position.y, z = position.z - this.position.z;
+        int u = Math.min((int) (textureMap.getWidth() * mapping.u(x, y, z)), textureMap.getWidth() - 1);
+        int v = Math.min((int) (textureMap.getHeight() * mapping.v(x, y, z)), textureMap.getHeight() - 1);
+        return textureMap.getColour(u, v);
+    }
+
+    // Texture averaged over footprint, the circumference of the sphere spanning the width of the texture
+    @Override
+    public ColorRGB getColour(Vector3 position, double footprint) {
+        if (textureMap == null) {
+            return colour;
+        }
+        SphereMapping mapping = getMapping();
+        double x = position.x - this.position.x, y = position.y - this.position.y, z = position.z - this.position.z;
+        return textureMap.sample(mapping.u(x, y, z), mapping.v(x, y, z), footprint / (2 * Math.PI * radius));
+    }
+
+    @Override
+    public void getColour(double px, double py, double pz, double footprint, double[] colour) {
+        if (textureMap == null) {
+            super.getColour(px, py, pz, footprint, colour);
+            return;
+        }
+        SphereMapping mapping = getMapping();
+        double x = px - position.x, y = py - position.y, z = pz - position.z;
+        textureMap.sample(mapping.u(x, y, z), mapping.v(x, y, z), footprint / (2 * Math.PI * radius), colour);
     }
 
     public String toXML() {
-        return String.format("<textured-sphere x=\"%f\" y=\"%f\" z=\"%f\" radius=\"%f\" colour=\"#FFFFFF\" kd=\"0.8\" kS=\"1.2\" alphaS=\"50\" texture-map=\"%s\"/>\n", position.x, position.y, position.z, radius, texture);
+        return String.format("<textured-sphere x=\"%s\" y=\"%s\" z=\"%s\" radius=\"%s\" %s%s"
+                        + " angle=\"%s\" ax=\"%s\" ay=\"%s\" az=\"%s\"/>\n", position.x, position.y, position.z, radius,
+                materialXML(colorName), textureXML(textureMap, getTexturePath()), randomAngle, randomAxis.x,
+                randomAxis.y, randomAxis.z);
+    }
+
+    // The texture-map and texture-scale attributes, none for a sphere of the material colour
+    static String textureXML(Texture map, String path) {
+        if (map == null) return "";
+        return String.format(" texture-map=\"%s\" texture-scale=\"%s\"", escapeXML(path), map.getScale());
     }
 }
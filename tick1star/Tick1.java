@@ -3,8 +3,12 @@ package uk.ac.cam.cl.gfxintro.bh525.tick1star;
 import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 
@@ -15,6 +19,8 @@ public class Tick1 {
     public static final String DEFAULT_OUTPUT = "output8.png";
 
     public static final int DEFAULT_BOUNCES = 5; // Default number of ray bounces
+    public static final int DEFAULT_SAMPLES = 1; // Default maximum number of adaptive samples per pixel
+    public static final int DEFAULT_THREADS = Runtime.getRuntime().availableProcessors(); // Default number of render threads
 
     // Height and width of the output image
     private static double resDiv = 8;
@@ -22,7 +28,9 @@ public class Tick1 {
     private static final int HEIGHT_PX = (int) (600 / resDiv);
 
     public static void usageError() { // Usage information
-        System.err.println("USAGE: <tick2> [--input INPUT] [--output OUTPUT] [--bounces BOUNCES]");
+        System.err.println("USAGE: <tick2> [--input INPUT] [--output OUTPUT] [--bounces BOUNCES] [--threads THREADS] [--seed SEED] [--samples SAMPLES]"
+                + " [--pattern RANDOM|STRATIFIED|HALTON|SOBOL|BLUE_NOISE] [--time SECONDS] [--snapshots SECONDS]"
+                + " [--passes PASSES] [--checkpoint SECONDS] [--resume CHECKPOINT] [--cull true|false]");
         System.exit(-1);
     }
 
@@ -35,6 +43,14 @@ public class Tick1 {
         // Parse the input and output filenames from the arguments
         String inputSceneFile = DEFAULT_INPUT, output = DEFAULT_OUTPUT;
         int bounces = DEFAULT_BOUNCES;
+        int threads = DEFAULT_THREADS;
+        long seed = 0;
+        int samples = DEFAULT_SAMPLES;
+        Sampler.Pattern pattern = Sampler.Pattern.RANDOM;
+        double timeBudget = 0, snapshotInterval = 0, checkpointInterval = 0;
+        int passes = 0;
+        String resume = null;
+        boolean cull = false;
         for (int i = 0; i < args.length; i += 2) {
             switch (args[i]) {
                 case "-i":
@@ -49,6 +65,40 @@ public class Tick1 {
                 case "--bounces":
                     bounces = Integer.parseInt(args[i + 1]);
                     break;
+                case "-t":
+                case "--threads":
+                    threads = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-s":
+                case "--seed":
+                    seed = Long.parseLong(args[i + 1]);
+                    break;
+                case "-n":
+                case "--samples":
+                    samples = Integer.parseInt(args[i + 1]);
+                    break;
+                case "-p":
+                case "--pattern":
+                    pattern = Sampler.Pattern.valueOf(args[i + 1].toUpperCase());
+                    break;
+                case "--time":
+                    timeBudget = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--snapshots":
+                    snapshotInterval = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--passes":
+                    passes = Integer.parseInt(args[i + 1]);
+                    break;
+                case "--checkpoint":
+                    checkpointInterval = Double.parseDouble(args[i + 1]);
+                    break;
+                case "--resume":
+                    resume = args[i + 1];
+                    break;
+                case "--cull":
+                    cull = Boolean.parseBoolean(args[i + 1]);
+                    break;
                 default:
                     System.err.println("Unknown option: " + args[i]);
                     usageError();
@@ -57,20 +107,63 @@ public class Tick1 {
 
         // Create the scene from the XML file
         System.out.printf("Loading scene '%s'\n", inputSceneFile);
-        Scene scene = new SceneLoader(inputSceneFile).getScene();
+        Scene scene = inputSceneFile.endsWith(SceneFile.EXTENSION) ? SceneFile.read(Paths.get(inputSceneFile))
+                : new SceneLoader(inputSceneFile, threads).getScene();
         scene = Scene.create11();
-        System.out.println(scene.toXML());
+        Writer xml = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        scene.writeXML(xml);
+        xml.write(System.lineSeparator());
+        xml.flush();
+        System.out.println(scene.buildAccelerationStructure().getStatistics());
+        System.out.println(TextureCache.getShared().getStatistics());
 
         // Create the image and colour the pixels
         Renderer renderer = new Renderer(WIDTH_PX, HEIGHT_PX, bounces);
-        BufferedImage image = renderer.render(scene);
+        renderer.setThreads(threads);
+        renderer.setSeed(seed);
+        renderer.setSamplePattern(pattern);
+        renderer.setAdaptiveSampling(4, samples, 0.01);
+        renderer.setPrimitiveKernel(true);
+        BufferedImage image;
+        if (timeBudget > 0 || passes > 0 || resume != null) {
+            if (cull) {
+                // Every pass samples other points, which a single pre-pass cannot stand for
+                System.err.println("--cull is ignored for progressive renders");
+            }
+            // Progressive rendering, refining the image until the time or number of passes runs out
+            ProgressiveRenderer progressive = new ProgressiveRenderer(renderer);
+            if (timeBudget > 0) {
+                progressive.setTimeBudget(timeBudget);
+            }
+            if (passes > 0) {
+                progressive.setMaxPasses(passes);
+            }
+            if (snapshotInterval > 0) {
+                progressive.setSnapshots(snapshotInterval, output.replaceFirst("(\\.png)?$", "-%04d.png"));
+            }
+            if (resume != null) {
+                System.out.printf("Resuming from checkpoint '%s'\n", resume);
+                progressive.resume(Paths.get(resume));
+            }
+            if (checkpointInterval > 0) {
+                progressive.setCheckpoints(checkpointInterval, Paths.get(resume != null ? resume : output + ".checkpoint"));
+            }
+            image = progressive.render(scene);
+            System.out.format("Passes: %d, estimated error: %.4f\n", progressive.getPasses(), progressive.getError());
+        } else {
+            if (cull) {
+                // Objects that no ray of this render would reach are dropped by a pre-pass with the same settings
+                int objectCount = scene.getObjects().size();
+                scene = SceneBuilder.cull(scene, renderer);
+                System.out.format("Culled %d of %d objects\n", objectCount - scene.getObjects().size(), objectCount);
+            }
+            renderer.setCollectVisibility(true);
+            image = renderer.render(scene);
+            System.out.format("Average samples per pixel: %.2f\n", renderer.getAverageSamplesPerPixel());
 
-        System.out.format("Visible objects: %d\n", renderer.visibleObjects.size());
-        //System.out.format("Visible objects: %d\n", renderer.visibleObjectHashes.size());
-        /*for (Integer i : renderer.visibleObjectHashes.keySet()) {
-            if (renderer.visibleObjectHashes.get(i) >= 1)
-                System.out.print(i + ",");
-        }*/
+            VisibilityStats visibility = renderer.getVisibilityStats();
+            System.out.format("Visible objects: %d\n", visibility.getVisibleCount());
+        }
 
         // Save the image to disk
         File save = new File(output);
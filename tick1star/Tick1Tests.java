@@ -1,7 +1,24 @@
 package uk.ac.cam.cl.gfxintro.bh525.tick1star;
 
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Tick1Tests {
 	private boolean failed, failed_test;
@@ -378,11 +395,1050 @@ public class Tick1Tests {
 		System.err.println("Part 2 testing complete.\n");
 	}
 
+	private void runTestsPart3() {
+		System.err.println("Testing acceleration code...");
+
+		for (BVH.Strategy strategy : BVH.Strategy.values()) {
+			start("bvh: " + strategy + " agrees with linear scan");
+			{
+				Scene test = Scene.create();
+				test.addObject(new Plane(new Vector3(0, -3, 0), new Vector3(0, 1, 0), new ColorRGB(1)));
+				test.buildAccelerationStructure(strategy);
+				Camera camera = new Camera(64, 48);
+				for (int y = 0; y < 48; y++) {
+					for (int x = 0; x < 64; x++) {
+						Ray r = camera.castRay(x, y);
+						RaycastHit expected = test.findClosestIntersectionLinear(r);
+						RaycastHit actual = test.findClosestIntersection(r);
+						check(expected.getObjectHit() == actual.getObjectHit()
+								&& expected.getDistance() == actual.getDistance());
+					}
+				}
+			}
+			finish();
+		}
+
+		start("bvh: parallel build of a large scene");
+		{
+			Scene test = new Scene();
+			for (int i = 0; i < 20000; i++) {
+				double t = i * 0.618034;
+				test.addObject(new Sphere(new Vector3(10 * Math.sin(t), 10 * Math.cos(1.3 * t), 20 + 10 * Math.sin(0.7 * t)),
+						0.05 + 0.05 * Math.abs(Math.cos(t)), new ColorRGB(1)));
+			}
+			BVH bvh = test.buildAccelerationStructure(BVH.Strategy.SAH);
+			check(bvh.getTraversalCost() < bvh.getLinearScanCost());
+			Camera camera = new Camera(32, 24);
+			for (int y = 0; y < 24; y++) {
+				for (int x = 0; x < 32; x++) {
+					Ray r = camera.castRay(x, y);
+					check(test.findClosestIntersectionLinear(r).getObjectHit()
+							== test.findClosestIntersection(r).getObjectHit());
+				}
+			}
+		}
+		finish();
+
+		start("sphere set: batched intersection matches individual spheres");
+		{
+			List<Sphere> spheres = Scene.fractal(new Vector3(-0.5, -0.5, 6), 1, 3);
+			SphereSet set = new SphereSet(spheres);
+			Camera camera = new Camera(32, 24);
+			for (int y = 0; y < 24; y++) {
+				for (int x = 0; x < 32; x++) {
+					Ray r = camera.castRay(x, y);
+					RaycastHit expected = new RaycastHit();
+					for (Sphere sphere : spheres) {
+						RaycastHit trial = sphere.intersectionWith(r);
+						if (trial.getDistance() < expected.getDistance()) expected = trial;
+					}
+					RaycastHit actual = set.findClosestIntersection(r);
+					check(expected.getObjectHit() == actual.getObjectHit()
+							&& expected.getDistance() == actual.getDistance());
+				}
+			}
+		}
+		finish();
+
+		start("occlusion: agrees with closest intersection");
+		{
+			Scene test = Scene.create();
+			test.addObject(new Plane(new Vector3(0, -3, 0), new Vector3(0, 1, 0), new ColorRGB(1)));
+			Camera camera = new Camera(48, 36);
+			for (int y = 0; y < 36; y++) {
+				for (int x = 0; x < 48; x++) {
+					Ray r = camera.castRay(x, y);
+					double distance = test.findClosestIntersectionLinear(r).getDistance();
+					for (double limit : new double[]{3, 6, 9, 1000}) {
+						check(test.isOccluded(r.getOrigin(), r.getDirection(), limit) == (distance < limit));
+					}
+				}
+			}
+		}
+		finish();
+
+		start("bvh: rebuilt after adding an object");
+		{
+			Scene test = new Scene();
+			test.addObject(new Sphere(new Vector3(0, 0, 5), 1, new ColorRGB(1)));
+			Ray r = new Ray(new Vector3(0), new Vector3(0, 0, 1));
+			test.findClosestIntersection(r);
+			Sphere closer = new Sphere(new Vector3(0, 0, 2), 0.5, new ColorRGB(1));
+			test.addObject(closer);
+			check(test.findClosestIntersection(r).getObjectHit() == closer);
+		}
+		finish();
+
+		start("parallel rendering: identical to sequential");
+		{
+			Scene test = Scene.create();
+			test.addObject(new Plane(new Vector3(0, -3, 0), new Vector3(0, 1, 0), new ColorRGB(1)));
+			Renderer sequential = new Renderer(70, 45, 2);
+			Renderer parallel = new Renderer(70, 45, 2);
+			parallel.setThreads(4);
+			BufferedImage expected = sequential.render(test);
+			BufferedImage actual = parallel.render(test);
+			for (int y = 0; y < 45; y++) {
+				for (int x = 0; x < 70; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+		}
+		finish();
+
+		start("primitive kernel: identical to reference kernel");
+		{
+			Scene test = Scene.create();
+			test.addObject(new Plane(new Vector3(0, -3, 0), new Vector3(0, 1, 0), new ColorRGB(1)));
+			Renderer reference = new Renderer(70, 45, 3);
+			Renderer primitive = new Renderer(70, 45, 3);
+			primitive.setPrimitiveKernel(true);
+			BufferedImage expected = reference.render(test);
+			BufferedImage actual = primitive.render(test);
+			for (int y = 0; y < 45; y++) {
+				for (int x = 0; x < 70; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+		}
+		finish();
+
+		start("visibility statistics: parallel counts match sequential");
+		{
+			Scene test = Scene.create();
+			Renderer sequential = new Renderer(40, 30, 2);
+			Renderer parallel = new Renderer(40, 30, 2);
+			sequential.setCollectVisibility(true);
+			parallel.setCollectVisibility(true);
+			parallel.setThreads(3);
+			sequential.render(test);
+			parallel.render(test);
+			VisibilityStats expected = sequential.getVisibilityStats();
+			VisibilityStats actual = parallel.getVisibilityStats();
+			check(expected.getVisibleCount() > 0 && expected.getVisibleCount() == actual.getVisibleCount());
+			for (SceneObject object : test.getObjects()) {
+				check(expected.getHitCount(object) == actual.getHitCount(object));
+			}
+
+			// Adding the objects to another, larger scene leaves the statistics of this one unchanged
+			Scene other = new Scene();
+			for (int i = 0; i < 10; i++) other.addObject(new Sphere(new Vector3(i, 0, -20), 0.1, Scene.gray));
+			List<SceneObject> reversed = new ArrayList<>(test.getObjects());
+			Collections.reverse(reversed);
+			for (SceneObject object : reversed) other.addObject(object);
+			parallel.render(test);
+			VisibilityStats again = parallel.getVisibilityStats();
+			check(again.getVisibleCount() == expected.getVisibleCount());
+			for (SceneObject object : test.getObjects()) {
+				check(again.getHitCount(object) == expected.getHitCount(object)
+						&& again.isVisible(object) == expected.isVisible(object));
+			}
+		}
+		finish();
+
+		start("sampling: seeded render is independent of threads and kernel");
+		{
+			Scene test = Scene.create();
+			Renderer sequential = new Renderer(40, 30, 2);
+			Renderer parallel = new Renderer(40, 30, 2);
+			Renderer primitive = new Renderer(40, 30, 2);
+			Renderer reseeded = new Renderer(40, 30, 2);
+			for (Renderer renderer : new Renderer[]{sequential, parallel, primitive, reseeded}) {
+				renderer.setSoftShadows(4, 0.5);
+				renderer.setSeed(42);
+				renderer.setSamplePattern(Sampler.Pattern.SOBOL);
+			}
+			parallel.setThreads(3);
+			primitive.setThreads(2);
+			primitive.setPrimitiveKernel(true);
+			reseeded.setSeed(43);
+			BufferedImage expected = sequential.render(test);
+			BufferedImage fromThreads = parallel.render(test);
+			BufferedImage fromPrimitive = primitive.render(test);
+			BufferedImage fromOtherSeed = reseeded.render(test);
+			boolean seedMatters = false;
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == fromThreads.getRGB(x, y));
+					check(expected.getRGB(x, y) == fromPrimitive.getRGB(x, y));
+					seedMatters |= expected.getRGB(x, y) != fromOtherSeed.getRGB(x, y);
+				}
+			}
+			check(seedMatters);
+		}
+		finish();
+
+		start("sampling: points are uniform in the unit sphere");
+		{
+			// Mean of z^2 over the unit ball is 1/5
+			Sampler sampler = new Sampler(7);
+			double sum = 0;
+			for (int i = 0; i < 20000; i++) {
+				Vector3 point = Vector3.randomInsideUnitSphere(sampler);
+				check(point.magnitude() <= 1);
+				sum += point.z * point.z;
+			}
+			check(Math.abs(sum / 20000 - 0.2) < 0.01);
+		}
+		finish();
+
+		start("sampling: patterns estimate with less error than random points");
+		{
+			double[] errors = new double[Sampler.Pattern.values().length];
+			for (Sampler.Pattern pattern : Sampler.Pattern.values()) {
+				Sampler sampler = new Sampler(11, pattern);
+				sampler.startPixel(3, 5);
+				double squaredError = 0;
+				for (int trial = 0; trial < 400; trial++) {
+					long set = sampler.startSet();
+					double sum = 0;
+					for (int i = 0; i < 16; i++) {
+						double u = sampler.sample(set, i, 16, 0);
+						double v = sampler.sample(set, i, 16, 1);
+						double w = sampler.sample(set, i, 16, 2);
+						check(u >= 0 && u < 1 && v >= 0 && v < 1 && w >= 0 && w < 1);
+						Vector3 point = Vector3.insideUnitSphere(u, v, w);
+						sum += point.z * point.z;
+					}
+					squaredError += Math.pow(sum / 16 - 0.2, 2);
+				}
+				errors[pattern.ordinal()] = squaredError;
+			}
+			for (Sampler.Pattern pattern : Sampler.Pattern.values()) {
+				if (pattern != Sampler.Pattern.RANDOM) {
+					check(errors[pattern.ordinal()] < errors[Sampler.Pattern.RANDOM.ordinal()]);
+				}
+			}
+		}
+		finish();
+
+		start("sampling: set keys of late passes do not wrap");
+		{
+			Sampler sampler = new Sampler(13, Sampler.Pattern.BLUE_NOISE);
+			sampler.startPixel(1, 2, 40000);
+			check(sampler.startSet() == (40000L << 16) + 1);
+			sampler.startPixel(1, 2, Integer.MAX_VALUE);
+			check(sampler.startSet() > (40000L << 16) + 1);
+		}
+		finish();
+
+		start("adaptive sampling: concentrates samples and is deterministic");
+		{
+			Scene test = Scene.create();
+			Renderer single = new Renderer(40, 30, 2);
+			Renderer sequential = new Renderer(40, 30, 2);
+			Renderer parallel = new Renderer(40, 30, 2);
+			sequential.setAdaptiveSampling(4, 16, 0.01);
+			parallel.setAdaptiveSampling(4, 16, 0.01);
+			parallel.setThreads(3);
+			parallel.setPrimitiveKernel(true);
+			single.render(test);
+			BufferedImage expected = sequential.render(test);
+			BufferedImage actual = parallel.render(test);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+			check(single.getAverageSamplesPerPixel() == 1);
+			check(sequential.getAverageSamplesPerPixel() > 4 && sequential.getAverageSamplesPerPixel() < 16);
+			check(parallel.getAverageSamplesPerPixel() == sequential.getAverageSamplesPerPixel());
+		}
+		finish();
+
+		start("progressive rendering: converges and is deterministic");
+		{
+			Scene test = Scene.create();
+			Renderer single = new Renderer(40, 30, 2);
+			ProgressiveRenderer onePass = new ProgressiveRenderer(single);
+			onePass.setMaxPasses(1);
+			BufferedImage expected = single.render(test);
+			BufferedImage actual = onePass.render(test);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					// The accumulation buffer is single precision, allow one step per channel
+					int e = expected.getRGB(x, y), a = actual.getRGB(x, y);
+					for (int shift = 0; shift < 24; shift += 8) {
+						check(Math.abs(((e >> shift) & 0xff) - ((a >> shift) & 0xff)) <= 1);
+					}
+				}
+			}
+
+			Renderer sequential = new Renderer(40, 30, 2);
+			Renderer parallel = new Renderer(40, 30, 2);
+			sequential.setSoftShadows(1, 0.5);
+			parallel.setSoftShadows(1, 0.5);
+			parallel.setThreads(3);
+			parallel.setPrimitiveKernel(true);
+			ProgressiveRenderer[] progressive = {new ProgressiveRenderer(sequential), new ProgressiveRenderer(parallel)};
+			double[] errors = new double[2];
+			for (int i = 0; i < 2; i++) {
+				progressive[i].setMaxPasses(4);
+				progressive[i].render(test);
+				errors[i] = progressive[i].getError();
+				progressive[i].setMaxPasses(16);
+				progressive[i].render(test);
+				check(progressive[i].getPasses() == 16 && progressive[i].getError() < errors[i]);
+			}
+			check(errors[0] == errors[1]);
+			BufferedImage first = progressive[0].getImage(), second = progressive[1].getImage();
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(first.getRGB(x, y) == second.getRGB(x, y));
+				}
+			}
+		}
+		finish();
+
+		start("parallel rendering: tiled renders reuse one pool");
+		{
+			Scene test = Scene.create();
+			Renderer renderer = new Renderer(40, 30, 1);
+			renderer.setThreads(2);
+			Set<ForkJoinPool> pools = Collections.newSetFromMap(new ConcurrentHashMap<>());
+			for (int pass = 0; pass < 3; pass++) {
+				renderer.renderTiles(test, (x, y, tracer, sampler) -> pools.add(ForkJoinTask.getPool()), false);
+			}
+			check(pools.size() == 1);
+
+			// A new pool is only started when the number of threads changes
+			renderer.setThreads(3);
+			pools.clear();
+			renderer.renderTiles(test, (x, y, tracer, sampler) -> pools.add(ForkJoinTask.getPool()), false);
+			check(pools.size() == 1 && pools.iterator().next().getParallelism() == 3);
+		}
+		finish();
+
+		start("checkpoint: resumed render is identical to an uninterrupted one");
+		try {
+			Scene test = Scene.create();
+			Renderer[] renderers = new Renderer[3];
+			for (int i = 0; i < 3; i++) {
+				renderers[i] = new Renderer(40, 30, 2);
+				renderers[i].setSoftShadows(1, 0.5);
+				renderers[i].setSamplePattern(Sampler.Pattern.HALTON);
+			}
+			renderers[0].setThreads(3);
+			renderers[2].setThreads(2);
+			ProgressiveRenderer uninterrupted = new ProgressiveRenderer(renderers[0]);
+			uninterrupted.setMaxPasses(5);
+			BufferedImage expected = uninterrupted.render(test);
+
+			// Scene failing once the number of rays cast into it reaches rays[1]
+			int[] rays = {0, Integer.MAX_VALUE};
+			Scene failing = new Scene() {
+				@Override
+				public RaycastHit findClosestIntersection(Ray ray) {
+					if (++rays[0] > rays[1]) throw new IllegalStateException("Simulated crash");
+					return super.findClosestIntersection(ray);
+				}
+			};
+			for (SceneObject object : test.getObjects()) failing.addObject(object);
+			for (PointLight light : test.getPointLights()) failing.addPointLight(light);
+			failing.setAmbientLight(test.getAmbientLighting());
+			ProgressiveRenderer onePass = new ProgressiveRenderer(renderers[1]);
+			onePass.setMaxPasses(1);
+			onePass.render(failing);
+
+			// Crash half way through the third pass, after checkpoints have been written between tiles
+			rays[1] = rays[0] * 5 / 2;
+			rays[0] = 0;
+			Path file = Files.createTempFile("tick1", ".checkpoint");
+			ProgressiveRenderer crashed = new ProgressiveRenderer(renderers[1]);
+			crashed.setMaxPasses(5);
+			crashed.setCheckpoints(1e-9, file);
+			try {
+				crashed.render(failing);
+				check(false);
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+
+			ProgressiveRenderer resumed = new ProgressiveRenderer(renderers[2]);
+			resumed.setMaxPasses(5);
+			resumed.resume(file);
+			check(resumed.getPasses() == crashed.getPasses() && resumed.getPasses() < 5);
+			BufferedImage actual = resumed.render(test);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+
+			// Resuming without a budget finishes the passes the crashed render was given
+			ProgressiveRenderer unbudgeted = new ProgressiveRenderer(renderers[2]);
+			unbudgeted.resume(file);
+			actual = unbudgeted.render(test);
+			check(unbudgeted.getPasses() == 5);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+
+			ProgressiveRenderer mismatched = new ProgressiveRenderer(renderers[2]);
+			mismatched.setMaxPasses(6);
+			try {
+				mismatched.resume(file);
+				check(false);
+			} catch (IOException e) {
+				// Expected, the maximum number of passes differs
+			}
+			Files.delete(file);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("checkpoint: resumed render keeps the budget it was started with");
+		try {
+			Scene test = Scene.create();
+			Renderer renderer = new Renderer(40, 30, 1);
+			Path file = Files.createTempFile("tick1", ".checkpoint");
+
+			// No budget is given when resuming, the pass budget is read from the checkpoint
+			ProgressiveRenderer passBudget = new ProgressiveRenderer(renderer);
+			passBudget.setMaxPasses(3);
+			passBudget.setCheckpoints(1e-9, file);
+			passBudget.render(test);
+			ProgressiveRenderer resumed = new ProgressiveRenderer(renderer);
+			resumed.resume(file);
+			check(resumed.isBounded());
+			resumed.render(test);
+			check(resumed.getPasses() == 3);
+
+			// The time budget was spent by the first pass, so resuming only completes one more
+			ProgressiveRenderer timeBudget = new ProgressiveRenderer(renderer);
+			timeBudget.setTimeBudget(1e-9);
+			timeBudget.setCheckpoints(1e-9, file);
+			timeBudget.render(test);
+			check(timeBudget.getPasses() == 1);
+			resumed = new ProgressiveRenderer(renderer);
+			resumed.resume(file);
+			resumed.render(test);
+			check(resumed.getPasses() == 2);
+
+			// Without any budget a render would never return
+			try {
+				new ProgressiveRenderer(renderer).render(test);
+				check(false);
+			} catch (IllegalStateException e) {
+				// Expected
+			}
+			Files.delete(file);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("scene builder: parallel inversion and hashed deduplication match nested loops");
+		{
+			Sampler sampler = new Sampler(19);
+			List<Sphere> spheres = new ArrayList<>();
+			for (int i = 0; i < 400; i++) {
+				// Pairs of spheres either side of the tolerance, and spheres near grid cell boundaries
+				Vector3 position = new Vector3(sampler.nextDouble(), sampler.nextDouble(), 0.001 * (i % 7));
+				double radius = 0.1 + sampler.nextDouble();
+				double offset = sampler.nextDouble() * 0.002;
+				spheres.add(new Sphere(position, radius, Scene.white));
+				spheres.add(new Sphere(position.add(new Vector3(offset, 0, 0)), radius, Scene.white));
+				spheres.add(new Sphere(position, radius + offset, Scene.white));
+			}
+			List<Sphere> bases = Arrays.asList(new Sphere(new Vector3(2, 0, 0), 1.5, Scene.white),
+					new Sphere(new Vector3(0, -2, 1), 1, Scene.white));
+
+			List<Sphere> inverted = SceneBuilder.invertAll(spheres, bases);
+			check(inverted.size() == spheres.size() * bases.size());
+			for (int i = 0; i < spheres.size(); i++) {
+				for (int j = 0; j < bases.size(); j++) {
+					Sphere expected = spheres.get(i).invert(bases.get(j));
+					Sphere actual = inverted.get(i * bases.size() + j);
+					check(expected.getPosition().equals(actual.getPosition()) && expected.radius == actual.radius);
+				}
+			}
+
+			List<Sphere> expected = new ArrayList<>();
+			for (Sphere sphere : spheres) {
+				boolean unique = true;
+				for (Sphere kept : expected) {
+					if (sphere.position.subtract(kept.position).magnitude() < 0.001
+							&& Math.abs(sphere.radius - kept.radius) < 0.001) {
+						unique = false;
+					}
+				}
+				if (unique) expected.add(sphere);
+			}
+			List<Sphere> actual = SceneBuilder.deduplicate(spheres);
+			check(actual.equals(expected) && actual.size() < spheres.size());
+		}
+		finish();
+
+		start("culling: pre-pass removes hidden objects without changing the image");
+		{
+			Scene full = Scene.create();
+			Sphere outer = new Sphere(new Vector3(0.5, 0.2, 6), 0.5, Scene.white);
+			Sphere enclosed = new Sphere(new Vector3(0.5, 0.2, 6), 0.2, Scene.red);
+			Sphere behind = new Sphere(new Vector3(0, 0, -50), 0.1, Scene.green);
+			full.addObject(outer);
+			full.addObject(enclosed);
+			full.addObject(behind);
+			Renderer renderer = new Renderer(40, 30, 3);
+			renderer.setSoftShadows(2, 0.3);
+			renderer.setThreads(2);
+			Scene culled = SceneBuilder.cull(full, renderer);
+			check(culled.getObjects().contains(outer) && !culled.getObjects().contains(enclosed)
+					&& !culled.getObjects().contains(behind));
+			check(culled.getPointLights().equals(full.getPointLights()));
+
+			BufferedImage expected = renderer.render(full);
+			BufferedImage actual = renderer.render(culled);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+		}
+		finish();
+
+		start("scene loader: streamed and parallel loads match the written scene");
+		try {
+			Scene written = new Scene();
+			written.setAmbientLight(new ColorRGB(0.05));
+			for (int i = 0; i < 3 * SceneLoader.CHUNK_SIZE + 7; i++) {
+				written.addObject(new Sphere(new Vector3(i % 17, i % 5 - 2, 0.25 * i), 0.5 + i % 3, Scene.white));
+				if (i % 1000 == 0) {
+					written.addObject(new Plane(new Vector3(0, -i, 0), new Vector3(0, 1, 0), Scene.white));
+					written.addPointLight(new PointLight(new Vector3(i, 2, -1), Scene.white, 80));
+				}
+			}
+			Path file = Files.createTempFile("tick1", ".xml");
+			try (Writer writer = Files.newBufferedWriter(file)) {
+				written.writeXML(writer);
+			}
+			for (int threads : new int[]{1, 3}) {
+				Scene loaded = new SceneLoader(file.toString(), threads).getScene();
+				check(loaded.getObjects().size() == written.getObjects().size());
+				for (int i = 0; i < written.getObjects().size(); i++) {
+					check(loaded.getObjects().get(i).toXML().equals(written.getObjects().get(i).toXML()));
+				}
+				check(loaded.getPointLights().size() == written.getPointLights().size());
+				for (int i = 0; i < written.getPointLights().size(); i++) {
+					check(loaded.getPointLights().get(i).toXML().equals(written.getPointLights().get(i).toXML()));
+				}
+				check(loaded.getAmbientLighting().equals(written.getAmbientLighting()));
+			}
+
+			// Errors are reported the same way however many threads build the objects
+			Files.write(file, (written.toXML().replace("</scene>", "<cube/></scene>")).getBytes());
+			for (int threads : new int[]{1, 3}) {
+				try {
+					new SceneLoader(file.toString(), threads);
+					check(false);
+				} catch (RuntimeException e) {
+					check(e.getMessage().equals("unknown object tag: cube"));
+				}
+			}
+			Files.delete(file);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("scene file: binary round trip renders identically");
+		try {
+			Scene written = Scene.create11();
+			TexturedSphere plain = new TexturedSphere(new Sphere(new Vector3(-0.6, 0.2, 6), 0.3, Scene.orange));
+			written.addObject(plain);
+			written.addObject(new BumpySphere(new Vector3(0.6, -0.4, 5), 0.3, Scene.gray, null));
+
+			// Textures are referenced by the path they were read from, with the scale of their colours
+			BufferedImage image = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 8; y++) {
+				for (int x = 0; x < 16; x++) {
+					image.setRGB(x, y, (x * 16) << 16 | (y * 32) << 8 | ((x + y) % 2) * 40);
+				}
+			}
+			Path png = Files.createTempFile("tick1", ".png");
+			ImageIO.write(image, "png", png.toFile());
+			Texture map = TexturedSphere.calculateTextureMap(png.toString());
+			TexturedSphere textured = new TexturedSphere(new Vector3(0.3, 0.2, 6), 0.4, Scene.white, map.scaled(3),
+					"display name.png");
+			textured.rotateRandomly();
+			written.addObject(textured);
+			written.addObject(new BumpySphere(new Vector3(-0.3, -0.5, 5), 0.25, Scene.orange, png.toString()));
+			written.addObject(new InsideOutSphere(new Vector3(0, 0, 0), 50, Scene.white, map.scaled(0.1), "sky"));
+			Path file = Files.createTempFile("tick1", SceneFile.EXTENSION);
+			SceneFile.write(written, file);
+			Scene read = SceneFile.read(file);
+
+			check(read.getObjects().size() == written.getObjects().size());
+			for (int i = 0; i < written.getObjects().size(); i++) {
+				SceneObject a = written.getObjects().get(i), b = read.getObjects().get(i);
+				check(a.getClass() == b.getClass() && a.toXML().equals(b.toXML()));
+				check(a.getPhong_kD() == b.getPhong_kD() && a.getPhong_kS() == b.getPhong_kS()
+						&& a.getPhong_alpha() == b.getPhong_alpha() && a.getReflectivity() == b.getReflectivity());
+			}
+			check(read.getPointLights().size() == written.getPointLights().size());
+			int count = written.getObjects().size();
+			TexturedSphere readTextured = (TexturedSphere) read.getObjects().get(count - 3);
+			check(readTextured.randomAngle == textured.randomAngle);
+			check(png.toString().equals(readTextured.getTextureMap().getSource())
+					&& readTextured.getTextureMap().getScale() == 3);
+			check(((InsideOutSphere) read.getObjects().get(count - 1)).getTextureMap().getScale() == 0.1);
+			check(((TexturedSphere) read.getObjects().get(count - 5)).getTextureMap() == null);
+
+			BufferedImage expected = new Renderer(40, 30, 3).render(written);
+			BufferedImage actual = new Renderer(40, 30, 3).render(read);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+			Files.delete(png);
+
+			// Truncated files are rejected rather than loaded partially
+			byte[] bytes = Files.readAllBytes(file);
+			Files.write(file, Arrays.copyOf(bytes, bytes.length - 10));
+			try {
+				SceneFile.read(file);
+				check(false);
+			} catch (IOException e) {
+				// Expected
+			}
+			Files.delete(file);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("scene file: conversion to XML loads back identically");
+		try {
+			// Colours with 8 bits per channel, which is all XML stores
+			ColorRGB teal = new ColorRGB(0x21 / 255.0, 0xe1 / 255.0, 0x58 / 255.0);
+			Scene written = new Scene();
+			written.setAmbientLight(new ColorRGB(0.03));
+			written.addPointLight(new PointLight(new Vector3(1.5, 2, -1), teal, 73.5));
+			written.addObject(new Plane(new Vector3(0, -1, 0), new Vector3(0, 1, 0), Scene.white, 0.7, 0.1, 3, 0.4));
+			written.addObject(new Sphere(new Vector3(0.1, 0.2, 5), 0.35, teal, 0.5, 1.1, 40, 0.15));
+			written.addObject(new Sphere(new Vector3(-0.7, 0.1, 6), 0.3, teal).setColorName("#21E158"));
+			written.addObject(new BumpySphere(new Vector3(0.6, -0.4, 5), 0.3, Scene.red, null));
+
+			BufferedImage image = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 8; y++) {
+				for (int x = 0; x < 16; x++) {
+					image.setRGB(x, y, (x * 16) << 16 | (y * 32) << 8 | ((x + y) % 2) * 40);
+				}
+			}
+			Path png = Files.createTempFile("tick1 & co", ".png");
+			ImageIO.write(image, "png", png.toFile());
+			Texture map = TexturedSphere.calculateTextureMap(png.toString());
+			TexturedSphere textured = new TexturedSphere(new Vector3(0.3, 0.3, 6), 0.4, Scene.white, map.scaled(3),
+					png.toString());
+			textured.rotateRandomly();
+			textured.setReflectivity(0.05);
+			written.addObject(textured);
+			written.addObject(new TexturedSphere(new Sphere(new Vector3(-0.4, -0.5, 6), 0.3, Scene.blue)));
+			written.addObject(new BumpySphere(new Vector3(-0.3, 0.6, 5), 0.25, Scene.white, png.toString()));
+			written.addObject(new InsideOutSphere(new Vector3(0, 0, 0), 50, Scene.white, map.scaled(0.1), "sky"));
+
+			Path file = Files.createTempFile("tick1", SceneFile.EXTENSION);
+			Path xml = Files.createTempFile("tick1", ".xml");
+			SceneFile.write(written, file);
+			SceneFile.main(new String[]{file.toString(), xml.toString()});
+			Scene loaded = new SceneLoader(xml.toString()).getScene();
+
+			check(loaded.getObjects().size() == written.getObjects().size());
+			for (int i = 0; i < written.getObjects().size(); i++) {
+				SceneObject a = written.getObjects().get(i), b = loaded.getObjects().get(i);
+				check(a.getClass() == b.getClass());
+				check(a.getPhong_kD() == b.getPhong_kD() && a.getPhong_kS() == b.getPhong_kS()
+						&& a.getPhong_alpha() == b.getPhong_alpha() && a.getReflectivity() == b.getReflectivity());
+			}
+			check(loaded.getAmbientLighting().equals(written.getAmbientLighting()));
+			check(loaded.getPointLights().get(0).toXML().equals(written.getPointLights().get(0).toXML()));
+			TexturedSphere loadedTextured = (TexturedSphere) loaded.getObjects().get(4);
+			check(loadedTextured.randomAngle == textured.randomAngle
+					&& loadedTextured.randomAxis.equals(textured.randomAxis));
+			check(loadedTextured.getTextureMap().getScale() == 3);
+			check(((InsideOutSphere) loaded.getObjects().get(7)).getTextureMap().getScale() == 0.1);
+			check(loaded.toXML().equals(SceneFile.read(file).toXML()));
+
+			BufferedImage expected = new Renderer(40, 30, 3).render(written);
+			BufferedImage actual = new Renderer(40, 30, 3).render(loaded);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+			Files.delete(png);
+			Files.delete(file);
+			Files.delete(xml);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("texture cache: images are decoded once and shared");
+		try {
+			BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 2; y++) {
+				for (int x = 0; x < 4; x++) {
+					image.setRGB(x, y, (x * 60) << 16 | (y * 200) << 8 | 17);
+				}
+			}
+			Path file = Files.createTempFile("tick1", ".png");
+			Path other = Files.createTempFile("tick1", ".png");
+			ImageIO.write(image, "png", file.toFile());
+			ImageIO.write(image, "png", other.toFile());
+
+			TextureCache cache = new TextureCache(TextureCache.DEFAULT_BUDGET_BYTES);
+			Texture texture = cache.get(file.toString());
+			check(cache.get(file.toString()) == texture);
+			// Sizes include the mip pyramid, 4 x 2, 2 x 1 and 1 x 1 texels
+			check(cache.getMisses() == 1 && cache.getHits() == 1 && cache.getSizeBytes() == 4 * 11);
+			check(texture.getWidth() == 4 && texture.getHeight() == 2);
+			ColorRGB colour = texture.getColour(3, 1);
+			check(colour.r == 180 / 256.0 && colour.g == 200 / 256.0 && colour.b == 17 / 256.0);
+			check(texture.scaled(3).getColour(3, 1).r == 3 * (180 / 256.0));
+
+			// Spheres built from the same file share the shared cache's copy
+			TexturedSphere a = new TexturedSphere(new Vector3(0, 0, 5), 1, Scene.gray, file.toString());
+			long misses = TextureCache.getShared().getMisses();
+			TexturedSphere b = new TexturedSphere(new Vector3(0, 0, 5), 1, Scene.gray, file.toString());
+			check(TextureCache.getShared().getMisses() == misses);
+			check(a.getColour(new Vector3(0, 1, 5)) != null && b.getColour(new Vector3(0, 1, 5)) != null);
+
+			// Only one texture fits, so reading the other evicts the least recently used
+			cache.setBudget(4 * 11);
+			cache.get(other.toString());
+			check(cache.getEvictions() == 1 && cache.getSizeBytes() == 4 * 11);
+			check(cache.get(file.toString()) != texture && cache.getMisses() == 3);
+
+			try {
+				cache.get(file + ".missing");
+				check(false);
+			} catch (IOException e) {
+				// Expected
+			}
+			Files.delete(file);
+			Files.delete(other);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("texture: images are mapped from a texel file converted once");
+		try {
+			BufferedImage image = new BufferedImage(5, 3, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 3; y++) {
+				for (int x = 0; x < 5; x++) {
+					image.setRGB(x, y, (x * 50) << 16 | (y * 100) << 8 | (x + y));
+				}
+			}
+			Path file = Files.createTempFile("tick1", ".png");
+			Path texels = Paths.get(file + Texture.TEXELS_EXTENSION);
+			ImageIO.write(image, "png", file.toFile());
+
+			Texture decoded = Texture.read(file.toString());
+			Texture mapped = Texture.map(file.toString());
+			check(!decoded.isMapped() && mapped.isMapped() && Files.exists(texels));
+			check(mapped.getWidth() == 5 && mapped.getHeight() == 3 && mapped.getSizeBytes() == 0);
+			for (int y = 0; y < 3; y++) {
+				for (int x = 0; x < 5; x++) {
+					ColorRGB a = decoded.getColour(x, y), b = mapped.scaled(2).getColour(x, y);
+					check(2 * a.r == b.r && 2 * a.g == b.g && 2 * a.b == b.b);
+				}
+			}
+
+			// Once converted, the texel file is used even without the image, and by read as well as map
+			Files.delete(file);
+			check(Texture.map(file.toString()).getColour(4, 2).r == 200 / 256.0);
+			check(Texture.read(file.toString()).isMapped());
+
+			// A changed image is converted again
+			image.setRGB(4, 2, 0x102030);
+			ImageIO.write(image, "png", file.toFile());
+			Files.setLastModifiedTime(file, FileTime.fromMillis(Files.getLastModifiedTime(texels).toMillis() + 5000));
+			check(Texture.map(file.toString()).getColour(4, 2).r == 0x10 / 256.0);
+
+			// As is one with an incomplete texel file
+			byte[] bytes = Files.readAllBytes(texels);
+			Files.write(texels, Arrays.copyOf(bytes, bytes.length - 4));
+			check(Texture.map(file.toString()).getColour(4, 2).b == 0x30 / 256.0);
+			check(Files.size(texels) == bytes.length);
+
+			Files.delete(file);
+			Files.delete(texels);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("texture: texel files hold the texels the image decodes to");
+		try {
+			// Decoded straight into the texel file (RGB and RGBA) and through the heap (grey), in every format
+			int[] types = {BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_BYTE_GRAY};
+			String[] formats = {"png", "png", "png", "jpg"};
+			for (int k = 0; k < formats.length; k++) {
+				BufferedImage image = new BufferedImage(37, 23, types[k % types.length]);
+				Sampler sampler = new Sampler(31 + k);
+				for (int y = 0; y < 23; y++) {
+					for (int x = 0; x < 37; x++) {
+						image.setRGB(x, y, (int) (sampler.nextDouble() * 0x1000000) | (x % 3) * 0x40000000);
+					}
+				}
+				Path file = Files.createTempFile("tick1", "." + formats[k]);
+				ImageIO.write(image, formats[k], file.toFile());
+				BufferedImage expected = ImageIO.read(file.toFile());
+				Texture mapped = Texture.map(file.toString());
+				check(mapped.isMapped());
+				for (int y = 0; y < 23; y++) {
+					for (int x = 0; x < 37; x++) {
+						check(mapped.getTexel(x, y) == (expected.getRGB(x, y) & 0xffffff));
+					}
+				}
+				Files.delete(file);
+				Files.delete(Paths.get(file + Texture.TEXELS_EXTENSION));
+			}
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("texture: images in read-only directories are converted in the cache directory");
+		Path previousCache = Texture.getCacheDirectory();
+		try {
+			BufferedImage image = new BufferedImage(6, 4, BufferedImage.TYPE_INT_RGB);
+			for (int y = 0; y < 4; y++) {
+				for (int x = 0; x < 6; x++) {
+					image.setRGB(x, y, (x * 40) << 16 | (y * 60) << 8 | 7);
+				}
+			}
+			Path directory = Files.createTempDirectory("tick1");
+			Path file = directory.resolve("read-only.png");
+			ImageIO.write(image, "png", file.toFile());
+			Path cache = Files.createTempDirectory("tick1-cache");
+			Texture.setCacheDirectory(cache);
+			Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("r-xr-xr-x"));
+			// Permissions do not bind privileged users, for whom only the result can be checked
+			boolean readOnly = !Files.isWritable(directory);
+
+			Texture mapped = Texture.map(file.toString());
+			check(mapped.isMapped() && mapped.getColour(5, 3).r == 200 / 256.0);
+			check(mapped.getColour(5, 3).g == 180 / 256.0 && file.toString().equals(mapped.getSource()));
+			if (readOnly) {
+				check(!Files.exists(Paths.get(file + Texture.TEXELS_EXTENSION)));
+				check(cache.toFile().list().length == 1);
+			}
+			// Found again on the next read, converted once
+			check(Texture.read(file.toString()).isMapped());
+			check(cache.toFile().list().length + directory.toFile().list().length == 2);
+
+			Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+			for (Path folder : new Path[]{directory, cache}) {
+				for (String entry : folder.toFile().list()) Files.delete(folder.resolve(entry));
+				Files.delete(folder);
+			}
+		} catch (IOException e) {
+			check(false);
+		} finally {
+			Texture.setCacheDirectory(previousCache);
+		}
+		finish();
+
+		start("texture: mip pyramid filters distant textures");
+		try {
+			// Checkerboard of black and white texels, which averages to grey at every level after the first
+			int[] checker = new int[64 * 32];
+			for (int i = 0; i < checker.length; i++) {
+				checker[i] = ((i % 64) + (i / 64)) % 2 == 0 ? 0xffffff : 0;
+			}
+			Texture texture = new Texture(64, 32, checker, 1);
+			check(texture.getLevelCount() == 7);
+			ColorRGB texel = texture.getColour(5, 3), centre = texture.sample(5.5 / 64, 3.5 / 32, 0);
+			check(Math.abs(texel.r - centre.r) < 1e-12 && Math.abs(texel.g - centre.g) < 1e-12);
+			// Without a footprint the nearest texel is taken, as by rays that do not track one
+			ColorRGB nearest = texture.sample(5.9 / 64, 3.1 / 32, 0);
+			check(nearest.r == texel.r && nearest.g == texel.g && nearest.b == texel.b);
+			double[] buffer = {7, 7, 7};
+			texture.scaled(2).sample(5.9 / 64, 3.1 / 32, 0, buffer);
+			check(buffer[0] == 2 * texel.r && buffer[1] == 2 * texel.g && buffer[2] == 2 * texel.b);
+			for (double footprint : new double[]{2.0 / 64, 0.1, 0.5, 4}) {
+				ColorRGB grey = texture.sample(0.3, 0.7, footprint);
+				check(Math.abs(grey.r - 0.5) < 1e-12 && Math.abs(grey.b - 0.5) < 1e-12);
+			}
+			// Half way between the full resolution image and the first level
+			ColorRGB blended = texture.sample(5.5 / 64, 3.5 / 32, Math.sqrt(2) / 64);
+			check(Math.abs(blended.r - (texel.r + 0.5) / 2) < 1e-9);
+
+			// A mapped texture has the same pyramid
+			BufferedImage image = new BufferedImage(64, 32, BufferedImage.TYPE_INT_RGB);
+			image.setRGB(0, 0, 64, 32, checker, 0, 64);
+			image.setRGB(10, 10, 0x3366cc);
+			Path file = Files.createTempFile("tick1", ".png");
+			ImageIO.write(image, "png", file.toFile());
+			Texture heap = Texture.read(file.toString()), mapped = Texture.map(file.toString());
+			check(mapped.isMapped() && mapped.getLevelCount() == heap.getLevelCount());
+			for (double footprint : new double[]{0, 0.01, 0.03, 0.2, 1}) {
+				ColorRGB a = heap.sample(0.17, 0.33, footprint), b = mapped.sample(0.17, 0.33, footprint);
+				check(a.r == b.r && a.g == b.g && a.b == b.b);
+			}
+			Files.delete(file);
+			Files.delete(Paths.get(file + Texture.TEXELS_EXTENSION));
+
+			// A distant textured sphere is shaded grey rather than black or white, by either kernel
+			Scene scene = new Scene();
+			TexturedSphere sphere = new TexturedSphere(new Vector3(0, 0, 40), 1, Scene.gray, texture, "checker.png");
+			scene.addObject(sphere);
+			scene.addPointLight(new PointLight(new Vector3(0, 5, 0), new ColorRGB(1), 100));
+			Ray ray = new Camera(40, 30).castRay(20, 15);
+			RaycastHit hit = scene.findClosestIntersection(ray);
+			ColorRGB filtered = sphere.getColour(hit.getLocation(), ray.getFootprint(hit.getDistance()));
+			check(Math.abs(filtered.r - 0.5) < 0.05);
+			Renderer reference = new Renderer(40, 30, 1);
+			Renderer primitive = new Renderer(40, 30, 1);
+			primitive.setPrimitiveKernel(true);
+			BufferedImage expected = reference.render(scene), actual = primitive.render(scene);
+			for (int y = 0; y < 30; y++) {
+				for (int x = 0; x < 40; x++) {
+					check(expected.getRGB(x, y) == actual.getRGB(x, y));
+				}
+			}
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		start("sphere mapping: rotation matrix and fast atan2 and asin within their error bounds");
+		{
+			Sampler sampler = new Sampler(23);
+			for (int i = 0; i < 1000; i++) {
+				Vector3 axis = Vector3.randomInsideUnitSphere(sampler).normalised();
+				double angle = 2 * Math.PI * sampler.nextDouble();
+				Vector3 direction = Vector3.randomInsideUnitSphere(sampler).normalised();
+				SphereMapping mapping = new SphereMapping(axis, angle);
+				Vector3 expected = Vector3.rotateVector(direction, axis, angle).normalised();
+				check(mapping.rotate(direction).subtract(expected).magnitude() < 1e-12);
+
+				// The texture coordinates as computed before the mapping was introduced
+				double alpha = (Math.atan2(expected.z, -expected.x) + 2 * Math.PI) % (2 * Math.PI);
+				double u = 1 - alpha / (2 * Math.PI), v = 1 - (Math.asin(expected.y) + Math.PI / 2) / Math.PI;
+				double x = 3 * direction.x, y = 3 * direction.y, z = 3 * direction.z;
+				double du = Math.abs(mapping.u(x, y, z) - u);
+				check(Math.min(du, 1 - du) <= SphereMapping.ATAN2_ERROR / (2 * Math.PI) + 1e-12);
+				check(Math.abs(mapping.v(x, y, z) - v) <= SphereMapping.ASIN_ERROR / Math.PI + 1e-12);
+			}
+			for (int i = 0; i <= 100000; i++) {
+				double t = 2 * Math.PI * i / 100000 - Math.PI;
+				for (double r : new double[]{1e-3, 1, 250}) {
+					double error = Math.abs(SphereMapping.atan2(r * Math.sin(t), r * Math.cos(t))
+							- Math.atan2(r * Math.sin(t), r * Math.cos(t)));
+					check(Math.min(error, 2 * Math.PI - error) <= SphereMapping.ATAN2_ERROR);
+				}
+				double s = -1 + 2.0 * i / 100000;
+				check(Math.abs(SphereMapping.asin(s) - Math.asin(s)) <= SphereMapping.ASIN_ERROR);
+			}
+
+			// Left half red and right half blue, so turning the sphere half way round swaps them
+			int[] halves = new int[8 * 4];
+			for (int i = 0; i < halves.length; i++) halves[i] = i % 8 < 4 ? 0xff0000 : 0x0000ff;
+			TexturedSphere sphere = new TexturedSphere(new Vector3(1, 2, 3), 2, Scene.gray,
+					new Texture(8, 4, halves, 1), "halves.png");
+			sphere.randomAxis = new Vector3(0, 1, 0);
+			sphere.randomAngle = 0;
+			Vector3 point = new Vector3(1, 2, 1);
+			ColorRGB before = sphere.getColour(point);
+			sphere.randomAngle = Math.PI;
+			ColorRGB after = sphere.getColour(point);
+			check(before.r != after.r && before.b == after.r && before.r == after.b);
+			// The poles are clamped to the first and last rows
+			check(sphere.getColour(new Vector3(1, 0, 3)) != null && sphere.getColour(new Vector3(1, 4, 3)) != null);
+		}
+		finish();
+
+		start("bumpy sphere: precomputed gradients match per-hit differences");
+		try {
+			BufferedImage image = new BufferedImage(16, 8, BufferedImage.TYPE_INT_RGB);
+			Sampler sampler = new Sampler(29);
+			float[][] heights = new float[8][16];
+			for (int row = 0; row < 8; row++) {
+				for (int col = 0; col < 16; col++) {
+					int blue = (int) (256 * sampler.nextDouble());
+					image.setRGB(col, row, blue);
+					heights[row][col] = 2 * ((float) blue / 0xFF);
+				}
+			}
+			Path file = Files.createTempFile("tick1", ".png");
+			ImageIO.write(image, "png", file.toFile());
+			Vector3 centre = new Vector3(1, -2, 9);
+			BumpySphere sphere = new BumpySphere(centre, 1.5, Scene.gray, file.toString());
+
+			for (int i = 0; i < 2000; i++) {
+				Vector3 normal = Vector3.randomInsideUnitSphere(sampler).normalised();
+				Vector3 position = centre.add(normal.scale(1.5));
+				Vector3 bumped = sphere.getNormalAt(position);
+				check(Math.abs(bumped.magnitude() - 1) < 1e-12);
+
+				// Away from texel boundaries and the last column and row, as computed before precomputation
+				double alpha = (Math.atan2(normal.z, -normal.x) + 2 * Math.PI) % (2 * Math.PI);
+				double x = 16 * (1 - alpha / (2 * Math.PI)), y = 8 * (1 - (Math.asin(normal.y) + Math.PI / 2) / Math.PI);
+				int u = (int) x, v = (int) y;
+				if (x - u < 1e-6 || u + 1 - x < 1e-6 || y - v < 1e-6 || v + 1 - y < 1e-6 || u >= 15 || v >= 7) continue;
+				Vector3 P_u = new Vector3(0, 1, 0).cross(normal).normalised();
+				Vector3 P_v = P_u.cross(normal).scale(-1).normalised();
+				double B_u = heights[v + 1][u] - heights[v][u], B_v = heights[v][u + 1] - heights[v][u];
+				Vector3 expected = normal.add(P_u.scale(B_u)).add(P_v.scale(B_v)).normalised();
+				check(bumped.subtract(expected).magnitude() < 1e-9);
+			}
+
+			// The edges wrap around or flatten rather than being clamped onto the neighbouring texels
+			Vector3 seam = sphere.getNormalAt(centre.add(new Vector3(-1.5, 0, -1e-9)));
+			Vector3 pole = sphere.getNormalAt(centre.add(new Vector3(0, -1.5, 0)));
+			check(Math.abs(seam.magnitude() - 1) < 1e-12 && pole.subtract(new Vector3(0, -1, 0)).magnitude() < 1e-12);
+
+			// Bilinear filtering agrees with the nearest texel at texel centres, here column 8 and row 4, up to the
+			// error of the approximated longitude and latitude
+			double longitude = 2 * Math.PI * (1 - 8.5 / 16), latitude = -Math.PI / 16;
+			Vector3 texelCentre = centre.add(new Vector3(-Math.cos(longitude) * Math.cos(latitude), Math.sin(latitude),
+					Math.sin(longitude) * Math.cos(latitude)).scale(1.5));
+			Vector3 nearest = sphere.getNormalAt(texelCentre);
+			sphere.setBilinear(true);
+			check(sphere.getNormalAt(texelCentre).subtract(nearest).magnitude() < 1e-6);
+			Files.delete(file);
+		} catch (IOException e) {
+			check(false);
+		}
+		finish();
+
+		System.err.println("Acceleration testing complete.\n");
+	}
+
 	public void test(boolean testAll) {
 		failed = false;
 		runTestsPart1();
 		if (testAll) {
 			runTestsPart2();
+			runTestsPart3();
 			System.err.println("Tested both part 1 and part 2 code.");
 		} else {
 			System.err.println("Tested only part 1 code. Pass -a to run all the tests.");
@@ -75,16 +75,25 @@ public class Vector3 {
         return N.scale(2 * this.dot(N)).subtract(this);
     }
 
-    // Creates a random vector inside the unit sphere
-    public static Vector3 randomInsideUnitSphere() {
-
-        double r = Math.random();
-        double theta = Math.random() * Math.PI;
-        double phi = Math.random() * Math.PI * 2;
-
-        double x = r * Math.sin(theta) * Math.cos(phi);
-        double y = r * Math.sin(theta) * Math.sin(phi);
-        double z = r * Math.cos(theta);
+    // Creates a random vector uniformly distributed inside the unit sphere
+    public static Vector3 randomInsideUnitSphere(Sampler sampler) {
+        return insideUnitSphere(sampler.nextDouble(), sampler.nextDouble(), sampler.nextDouble());
+    }
+
+    /*
+     * Maps a point of the unit cube to the unit sphere, preserving volume so that uniform points stay uniform.
+     * The radius is a cube root and the polar angle an arccosine, as the volume of a shell grows with r^2
+     * and the area of a band with sin(theta).
+     */
+    public static Vector3 insideUnitSphere(double u, double v, double w) {
+        double r = Math.cbrt(u);
+        double cosTheta = 1 - 2 * v;
+        double sinTheta = Math.sqrt(Math.max(0, 1 - cosTheta * cosTheta));
+        double phi = w * Math.PI * 2;
+
+        double x = r * sinTheta * Math.cos(phi);
+        double y = r * sinTheta * Math.sin(phi);
+        double z = r * cosTheta;
 
         return new Vector3(x, y, z);
     }
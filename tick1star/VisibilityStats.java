@@ -0,0 +1,96 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/*
+ * Records which scene objects are hit by rays during a render. Every thread counts into its own primitive
+ * arrays indexed by the objects' positions in the scene, so recording never locks or allocates; the
+ * per-thread counters are merged once the render has finished. The positions are held here rather than on
+ * the objects, as the same object may belong to several scenes.
+ */
+public class VisibilityStats {
+
+    // Counters owned by a single thread
+    private static class Counters {
+        final BitSet visible;
+        final int[] hits;
+
+        Counters(int objectCount) {
+            visible = new BitSet(objectCount);
+            hits = new int[objectCount];
+        }
+    }
+
+    private final SceneObject[] objects;
+
+    // Position of every object in objects, the first if it was added more than once
+    private final Map<SceneObject, Integer> indices = new IdentityHashMap<>();
+    private final ConcurrentLinkedQueue<Counters> allCounters = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Counters> threadCounters;
+
+    // Merged results
+    private BitSet visible;
+    private int[] hits;
+
+    public VisibilityStats(Scene scene) {
+        objects = scene.getObjects().toArray(new SceneObject[0]);
+        for (int i = 0; i < objects.length; i++) {
+            indices.putIfAbsent(objects[i], i);
+        }
+        threadCounters = ThreadLocal.withInitial(() -> {
+            Counters counters = new Counters(objects.length);
+            allCounters.add(counters);
+            return counters;
+        });
+        visible = new BitSet(objects.length);
+        hits = new int[objects.length];
+    }
+
+    // Record a ray hitting the object, called from any render thread; objects not in the scene are ignored
+    public void record(SceneObject object) {
+        Integer index = indices.get(object);
+        if (index == null) return;
+        Counters counters = threadCounters.get();
+        counters.visible.set(index);
+        counters.hits[index]++;
+    }
+
+    // Combine the counters of all threads, to be called after rendering has finished
+    public void merge() {
+        Counters counters;
+        while ((counters = allCounters.poll()) != null) {
+            visible.or(counters.visible);
+            for (int i = 0; i < hits.length; i++) {
+                hits[i] += counters.hits[i];
+            }
+        }
+        threadCounters.remove();
+    }
+
+    public int getVisibleCount() {
+        return visible.cardinality();
+    }
+
+    public int getHitCount(SceneObject object) {
+        Integer index = indices.get(object);
+        return index == null ? 0 : hits[index];
+    }
+
+    public boolean isVisible(SceneObject object) {
+        Integer index = indices.get(object);
+        return index != null && visible.get(index);
+    }
+
+    public List<SceneObject> getVisibleObjects() {
+        List<SceneObject> result = new ArrayList<>();
+        for (int i = visible.nextSetBit(0); i >= 0; i = visible.nextSetBit(i + 1)) {
+            result.add(objects[i]);
+        }
+        return result;
+    }
+}
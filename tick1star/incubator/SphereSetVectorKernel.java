@@ -0,0 +1,65 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/*
+ * SphereSet intersection on the incubating JDK Vector API, testing one ray against as many spheres per
+ * instruction as the preferred double species holds (4 with AVX2, 8 with AVX-512). It is kept in its own
+ * directory because it must be compiled and run with --add-modules jdk.incubator.vector; SphereSet loads it
+ * reflectively and keeps using its scalar loop when the module is not available.
+ *
+ * Every lane performs the same operations in the same order as the scalar loop, and candidate lanes are
+ * compared against the running nearest distance in index order, so the result is identical.
+ */
+class SphereSetVectorKernel implements SphereSet.VectorKernel {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    @Override
+    public int lanes() {
+        return SPECIES.length();
+    }
+
+    @Override
+    public int intersect(SphereSet set, double ox, double oy, double oz, double dx, double dy, double dz,
+                         double magnitude, int first, int end, double[] nearest) {
+        double a = dx * dx + dy * dy + dz * dz;
+        double twoA = 2 * a;
+        double fourA = 4 * a;
+        double best = nearest[0];
+        int bestIndex = -1;
+
+        int i = first;
+        int upper = first + SPECIES.loopBound(end - first);
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector ocx = DoubleVector.broadcast(SPECIES, ox).sub(DoubleVector.fromArray(SPECIES, set.centerX, i));
+            DoubleVector ocy = DoubleVector.broadcast(SPECIES, oy).sub(DoubleVector.fromArray(SPECIES, set.centerY, i));
+            DoubleVector ocz = DoubleVector.broadcast(SPECIES, oz).sub(DoubleVector.fromArray(SPECIES, set.centerZ, i));
+            DoubleVector b = ocx.mul(dx).add(ocy.mul(dy)).add(ocz.mul(dz)).mul(2);
+            DoubleVector c = ocx.mul(ocx).add(ocy.mul(ocy)).add(ocz.mul(ocz))
+                    .sub(DoubleVector.fromArray(SPECIES, set.radiusSquared, i));
+            DoubleVector d = b.mul(b).sub(c.mul(fourA));
+            VectorMask<Double> hit = d.compare(VectorOperators.GE, 0);
+            if (!hit.anyTrue()) continue;
+
+            DoubleVector s = b.neg().sub(d.sqrt()).div(twoA);
+            DoubleVector distance = s.mul(magnitude);
+            hit = hit.and(s.compare(VectorOperators.GE, 0)).and(distance.compare(VectorOperators.LT, best));
+            if (!hit.anyTrue()) continue;
+
+            for (int lane = 0; lane < SPECIES.length(); lane++) {
+                if (hit.laneIsSet(lane) && distance.lane(lane) < best) {
+                    best = distance.lane(lane);
+                    bestIndex = i + lane;
+                }
+            }
+        }
+
+        nearest[0] = best;
+        int tailIndex = set.intersectScalar(ox, oy, oz, dx, dy, dz, magnitude, i, end, nearest);
+        return tailIndex >= 0 ? tailIndex : bestIndex;
+    }
+}
@@ -0,0 +1,212 @@
+package uk.ac.cam.cl.gfxintro.bh525.tick1star;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * JMH benchmarks of intersection, shading and full-frame rendering in every generated scene. Each operation is
+ * applied to the primary rays through the pixels of a small frame, or to the shading inputs at their hits, and
+ * counted once per ray, so the throughput JMH reports is in rays per second. Frames count their primary rays;
+ * the rays they cast in total, shadow and reflection rays included, are reported as the extra "rays" metric.
+ *
+ * Build with mvn -Pjmh package, then run java -jar target/benchmarks.jar -prof gc, whose gc.alloc.rate.norm is
+ * the number of bytes allocated per ray. Running this class's main method does the same for every benchmark.
+ * A subset is chosen as usual, e.g. java -jar target/benchmarks.jar render -p scene=create11 -prof gc.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+public class Tick1Benchmarks {
+
+    private static final int WIDTH_PX = 160;
+    private static final int HEIGHT_PX = 120;
+    private static final int BOUNCES = 5;
+
+    // Operations of every benchmark but render, one per primary ray or shading input
+    private static final int RAYS = WIDTH_PX * HEIGHT_PX;
+
+    // Scene wrapper counting every ray cast into it, including shadow rays
+    static class CountingScene extends Scene {
+        long rays;
+
+        CountingScene(Scene scene) {
+            for (SceneObject object : scene.getObjects()) addObject(object);
+            for (PointLight light : scene.getPointLights()) addPointLight(light);
+            setAmbientLight(scene.getAmbientLighting());
+        }
+
+        // Queries made with a Ray are forwarded to these, so each ray is counted once
+        @Override
+        public SceneObject findClosestObject(double ox, double oy, double oz, double dx, double dy, double dz,
+                                             double[] hit, BVH.TraversalStack stack) {
+            rays++;
+            return super.findClosestObject(ox, oy, oz, dx, dy, dz, hit, stack);
+        }
+
+        @Override
+        public boolean isOccluded(double ox, double oy, double oz, double dx, double dy, double dz,
+                                  double maxDistance, BVH.TraversalStack stack) {
+            rays++;
+            return super.isOccluded(ox, oy, oz, dx, dy, dz, maxDistance, stack);
+        }
+    }
+
+    /*
+     * One of the Scene.create methods with its acceleration structure built, and the inputs of each benchmark:
+     * the primary rays, a sphere and a plane of the scene, and the shading inputs at the primary hits, repeated
+     * to one per ray.
+     */
+    @State(Scope.Benchmark)
+    public static class SceneState {
+        @Param({"create", "create2", "create3", "create4", "create5", "create6", "create7", "create8", "create9",
+                "create10", "create11", "create12"})
+        public String scene;
+
+        CountingScene counting;
+        Renderer renderer;
+        Ray[] rays;
+        Sphere sphere;
+        Plane plane;
+        RaycastHit[] hits;
+        ColorRGB[] colours;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            // The scenes and renderer report their progress on standard output, which would bury the results
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            counting = new CountingScene(SceneFile.load(scene));
+            System.err.format("%s: %d objects, %s%n  %s%n", scene, counting.getObjects().size(),
+                    counting.buildAccelerationStructure().getStatistics(), TextureCache.getShared().getStatistics());
+            renderer = new Renderer(WIDTH_PX, HEIGHT_PX, BOUNCES);
+
+            Camera camera = new Camera(WIDTH_PX, HEIGHT_PX);
+            rays = new Ray[RAYS];
+            for (int y = 0; y < HEIGHT_PX; y++) {
+                for (int x = 0; x < WIDTH_PX; x++) {
+                    rays[y * WIDTH_PX + x] = camera.castRay(x, y);
+                }
+            }
+
+            // Scenes without a sphere or plane of their own intersect one in front of or below the camera
+            for (SceneObject object : counting.getObjects()) {
+                if (sphere == null && object.getClass() == Sphere.class) sphere = (Sphere) object;
+                if (plane == null && object.getClass() == Plane.class) plane = (Plane) object;
+            }
+            if (sphere == null) sphere = new Sphere(new Vector3(0, 0, 5), 1, Scene.white);
+            if (plane == null) plane = new Plane(new Vector3(0, -1, 0), new Vector3(0, 1, 0), Scene.white);
+
+            // Shading inputs are the primary hits, with the unshaded surface colour standing in for the light
+            List<RaycastHit> found = new ArrayList<>();
+            for (Ray ray : rays) {
+                RaycastHit hit = counting.findClosestIntersection(ray);
+                if (hit.getObjectHit() != null) found.add(hit);
+            }
+            if (found.isEmpty()) {
+                throw new IllegalStateException(scene + " has nothing in view to shade");
+            }
+            hits = new RaycastHit[RAYS];
+            colours = new ColorRGB[RAYS];
+            for (int i = 0; i < RAYS; i++) {
+                hits[i] = found.get(i % found.size());
+                colours[i] = hits[i].getObjectHit().getColour(hits[i].getLocation());
+            }
+        }
+    }
+
+    // A renderer of whole frames with the reference or the primitive kernel
+    @State(Scope.Benchmark)
+    public static class KernelState {
+        @Param({"reference", "primitive"})
+        public String kernel;
+
+        Renderer renderer;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            renderer = new Renderer(WIDTH_PX, HEIGHT_PX, BOUNCES);
+            renderer.setPrimitiveKernel(kernel.equals("primitive"));
+        }
+    }
+
+    // Rays cast in total by the frames of an iteration, reported by JMH as a rate next to the primary rays
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class RayCounter {
+        public long rays;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void sphereIntersectionWith(SceneState state, Blackhole blackhole) {
+        for (Ray ray : state.rays) blackhole.consume(state.sphere.intersectionWith(ray));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void planeIntersectionWith(SceneState state, Blackhole blackhole) {
+        for (Ray ray : state.rays) blackhole.consume(state.plane.intersectionWith(ray));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void findClosestIntersection(SceneState state, Blackhole blackhole) {
+        for (Ray ray : state.rays) blackhole.consume(state.counting.findClosestIntersection(ray));
+    }
+
+    // Phong shading with shadow rays, seen from the camera
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void illuminate(SceneState state, Blackhole blackhole) {
+        Vector3 O = new Vector3(0);
+        for (RaycastHit hit : state.hits) {
+            blackhole.consume(state.renderer.illuminate(state.counting, hit.getObjectHit(), hit.getLocation(),
+                    hit.getNormal(), O));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void tonemap(SceneState state, Blackhole blackhole) {
+        for (ColorRGB colour : state.colours) blackhole.consume(state.renderer.tonemap(colour));
+    }
+
+    // A whole frame, counted per pixel, with the rays it casts added to the rays metric
+    @Benchmark
+    @OperationsPerInvocation(RAYS)
+    public void render(SceneState state, KernelState kernel, RayCounter counter, Blackhole blackhole) {
+        long before = state.counting.rays;
+        blackhole.consume(kernel.renderer.render(state.counting));
+        counter.rays += state.counting.rays - before;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(Tick1Benchmarks.class.getSimpleName())
+                .addProfiler(GCProfiler.class).build()).run();
+    }
+}